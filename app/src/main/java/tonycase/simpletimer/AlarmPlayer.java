@@ -0,0 +1,238 @@
+package tonycase.simpletimer;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.RingtoneManager;
+import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Build;
+import android.util.SparseBooleanArray;
+
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Plays the alarm sound for every timer.  The default alarm sound is looked up and made ready once,
+ * when the service starts, so that at zero the sound starts within a few ms, and nothing is looked up
+ * on the ticker.  Each alarm loops until stopped.
+ *
+ * A short sound is decoded into a {@link SoundPool}, so timers expiring together are mixed.
+ * SoundPool keeps at most about 1 MB of decoded sound, some 5 seconds of 48 kHz stereo, and cuts off
+ * the rest, so a longer sound, most alarm tones, is played by one prepared, looping
+ * {@link MediaPlayer} that all the ringing timers share.  The player also covers a short sound until
+ * the pool has loaded it.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/7/16.
+ */
+final class AlarmPlayer implements AlarmSound {
+
+    // alarms that can sound at once; more than this and the oldest is cut off
+    private static final int MAX_STREAMS = 8;
+
+    // the longest sound the pool is sure to hold in full
+    private static final long MAX_POOLED_MS = 5000;
+
+    private static AlarmPlayer instance;
+
+    private final Context context;
+
+    // the services that have prepared the sound and not yet released it
+    private int users;
+
+    private SoundPool soundPool;
+    // the alarm sound in the pool, once loaded
+    private int soundId;
+    private boolean loaded;
+
+    // the alarm sound, prepared to play from the start, or null once the pool has it or if it can't
+    // be played
+    private MediaPlayer player;
+    // the alarms sounding through the player, by their (negative) handles
+    private final SparseBooleanArray playerAlarms = new SparseBooleanArray();
+    private int nextPlayerHandle = -1;
+
+    private AlarmPlayer(Context context) {
+        this.context = context;
+    }
+
+    static synchronized AlarmPlayer getInstance(Context context) {
+        if (instance == null) {
+            instance = new AlarmPlayer(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Makes the alarm sound ready to play, if it isn't already.  Each call is matched by a
+     * {@link #release()}, and the sound is kept until the last of them.  A short sound finishes
+     * loading into the pool in the background.
+     */
+    synchronized void prepare() {
+        if (users++ > 0) {
+            return;
+        }
+        Uri uri = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
+        player = newPlayer(uri);
+        if (player == null) {
+            return;
+        }
+        int durationMs = player.getDuration();
+        if (durationMs <= 0 || durationMs > MAX_POOLED_MS) {
+            Timber.i("alarm sound %s lasts %d ms; played by a MediaPlayer", uri, durationMs);
+            return;
+        }
+
+        soundPool = newSoundPool();
+        soundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool pool, int sampleId, int status) {
+                loadComplete(pool, sampleId, status);
+            }
+        });
+        AssetFileDescriptor afd = null;
+        try {
+            afd = context.getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (afd != null) {
+                // the pool keeps its own copy of the descriptor
+                soundId = soundPool.load(afd, 1);
+            }
+        } catch (IOException | SecurityException e) {
+            Timber.w(e, "could not load alarm sound %s into the pool", uri);
+        } finally {
+            if (afd != null) {
+                try {
+                    afd.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private synchronized void loadComplete(SoundPool pool, int sampleId, int status) {
+        if (pool == soundPool && sampleId == soundId) {
+            loaded = status == 0;
+            Timber.d("alarm sound loaded, status %d", status);
+            releasePlayerIfUnused();
+        }
+    }
+
+    /**
+     * Starts an alarm sounding.
+     *
+     * @return  a handle for {@link #stop(int)}, or {@link #NO_ALARM}
+     */
+    @Override
+    public synchronized int play() {
+        if (loaded) {
+            int streamId = soundPool.play(soundId, 1f, 1f, 1, -1, 1f);
+            if (streamId != 0) {
+                return streamId;
+            }
+        }
+        if (player == null) {
+            return NO_ALARM;
+        }
+        if (playerAlarms.size() == 0) {
+            player.start();
+        }
+        int handle = nextPlayerHandle--;
+        playerAlarms.put(handle, true);
+        return handle;
+    }
+
+    /** Stops an alarm started by {@link #play()}.  Stopping one that has stopped does nothing. */
+    @Override
+    public synchronized void stop(int handle) {
+        if (handle > 0) {
+            if (soundPool != null) {
+                soundPool.stop(handle);
+            }
+        } else if (handle < 0 && playerAlarms.get(handle)) {
+            playerAlarms.delete(handle);
+            if (playerAlarms.size() == 0) {
+                // ready for the next alarm, from the start
+                player.pause();
+                player.seekTo(0);
+                releasePlayerIfUnused();
+            }
+        }
+    }
+
+    /**
+     * Undoes a {@link #prepare()}.  The last release stops all alarms and frees the sound; the next
+     * prepare makes it ready again.
+     */
+    synchronized void release() {
+        if (users == 0 || --users > 0) {
+            return;
+        }
+        if (soundPool != null) {
+            soundPool.release();
+            soundPool = null;
+        }
+        loaded = false;
+        playerAlarms.clear();
+        if (player != null) {
+            player.release();
+            player = null;
+        }
+    }
+
+    // The player is kept only until the pool has the sound, and no alarm is sounding through it.
+    private void releasePlayerIfUnused() {
+        if (loaded && player != null && playerAlarms.size() == 0) {
+            player.release();
+            player = null;
+        }
+    }
+
+    // A looping player, prepared to play the sound from the start, or null if it can't be.
+    private MediaPlayer newPlayer(Uri uri) {
+        MediaPlayer player = new MediaPlayer();
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                player.setAudioAttributes(alarmAttributes());
+            } else {
+                setAlarmStream(player);
+            }
+            player.setDataSource(context, uri);
+            player.setLooping(true);
+            player.prepare();
+            return player;
+        } catch (IOException | RuntimeException e) {
+            Timber.w(e, "could not prepare alarm sound %s", uri);
+            player.release();
+            return null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setAlarmStream(MediaPlayer player) {
+        player.setAudioStreamType(AudioManager.STREAM_ALARM);
+    }
+
+    private static AudioAttributes alarmAttributes() {
+        return new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_ALARM)
+                .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                .build();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static SoundPool newSoundPool() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return new SoundPool.Builder()
+                    .setMaxStreams(MAX_STREAMS)
+                    .setAudioAttributes(alarmAttributes())
+                    .build();
+        } else {
+            return new SoundPool(MAX_STREAMS, AudioManager.STREAM_ALARM, 0);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package tonycase.simpletimer;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * The production {@link SystemTrace.Sink}: {@link Trace}, from API 18 (JELLY_BEAN_MR2).  Whether a trace
+ * is being captured, and async sections, are only public from API 29; we build against an earlier SDK,
+ * so they are invoked by name.  Before 29, the hidden Trace.isTagEnabled, asyncTraceBegin and
+ * asyncTraceEnd are invoked instead, with the app's tag.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+final class AndroidTrace implements SystemTrace.Sink {
+
+    static final AndroidTrace INSTANCE = new AndroidTrace();
+
+    // Trace.TRACE_TAG_APP, the tag of sections begun by apps
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    private final Method isEnabled;
+    // made once, so that asking isn't an allocation
+    private final Object[] isEnabledArgs;
+    private final Method beginAsyncSection;
+    private final Method endAsyncSection;
+    // whether the async methods are the hidden ones, taking the tag first
+    private final boolean asyncTagged;
+
+    private AndroidTrace() {
+        Method enabled = null;
+        Object[] enabledArgs = null;
+        Method beginAsync = null;
+        Method endAsync = null;
+        try {
+            if (Build.VERSION.SDK_INT >= 29) {
+                enabled = Trace.class.getMethod("isEnabled");
+                beginAsync = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                endAsync = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                enabled = Trace.class.getMethod("isTagEnabled", long.class);
+                enabledArgs = new Object[] {TRACE_TAG_APP};
+                beginAsync = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                endAsync = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            }
+        } catch (Exception e) {
+            // not on this device; named sections are then never made
+            enabled = null;
+            beginAsync = null;
+            endAsync = null;
+        }
+        isEnabled = enabled;
+        isEnabledArgs = enabledArgs;
+        beginAsyncSection = beginAsync;
+        endAsyncSection = endAsync;
+        asyncTagged = Build.VERSION.SDK_INT < 29;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        if (isEnabled == null) {
+            return false;
+        }
+        try {
+            return (Boolean) isEnabled.invoke(null, isEnabledArgs);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    @Override
+    public void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    @Override
+    public void beginAsyncSection(String name, int cookie) {
+        invoke(beginAsyncSection, name, cookie);
+    }
+
+    @Override
+    public void endAsyncSection(String name, int cookie) {
+        invoke(endAsyncSection, name, cookie);
+    }
+
+    private void invoke(Method method, String name, int cookie) {
+        if (method != null) {
+            try {
+                if (asyncTagged) {
+                    method.invoke(null, TRACE_TAG_APP, name, cookie);
+                } else {
+                    method.invoke(null, name, cookie);
+                }
+            } catch (Exception e) {
+                // the section is lost; the trace is no worse than without it
+            }
+        }
+    }
+}
@@ -1,275 +1,475 @@
 package tonycase.simpletimer;
 
-import android.app.Notification;
-import android.app.NotificationManager;
+import android.app.AlarmManager;
+import android.app.KeyguardManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
-import android.media.Ringtone;
-import android.media.RingtoneManager;
+import android.content.IntentFilter;
 import android.media.TimedMetaData;
-import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
-import android.preference.PreferenceManager;
-import android.support.v4.app.NotificationCompat;
-import android.view.View;
-import android.widget.RemoteViews;
-
-import java.util.HashMap;
-import java.util.Map;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
 
 import timber.log.Timber;
 
-import static android.os.PowerManager.*;
-
 /**
- * Provides background processing for our widget.  Specifically, for each running widget, this
- * has a background thread doing the counting down and updating the display.  At the end of the countdown,
- * it flashes the text (if still displayed) and plays an alarm sound.
+ * Provides background processing for our widget.  Specifically, it runs the timers of all the widgets,
+ * a {@link TimerEngine}, with a single shared ticker thread counting down and updating the display.
+ * At the end of the countdown, it shows a blinking zero, animated by the launcher, and plays an alarm
+ * sound.  Running timers are journaled, so they survive the process being killed.
  *
  * @author Tony Case (case.tony@gmail.com)
  *         Created on 1/13/16.
  */
-public class CountdownService extends Service {
+public class CountdownService extends Service implements TimerEngine.Host {
 
-    // A thread for each widget process
-    private Map<Integer, CountdownThread> timerCountdownsTable = new HashMap<>();
-    // As well as a wake lock.  The lock will either be for the display, if chosen, or otherwise just the cpu.
-    private Map<Integer, PowerManager.WakeLock> wakeLocks = new HashMap<>();
+    /** Service action: the countdown for the widget in the intent has reached zero. */
+    public static final String ACTION_EXPIRE = "tonycase.simpletimer.action.EXPIRE";
 
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        Timber.d("onStartCommand");
+    /** Service action: start the timer for the widget in the intent, unless it's running. */
+    public static final String ACTION_START = "tonycase.simpletimer.action.START";
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-        int appWidgetId = intent.getIntExtra(TimerWidgetProvider.APP_WIDGET_ID, -1);
-        boolean screenOn = TimerWidgetUtils.getScreenOnForId(this, appWidgetId);
-
-        // determine whether this countdown is starting or being stopped
-        boolean starting = !timerCountdownsTable.containsKey(appWidgetId);
-
-        if (starting) {
-            // create and start Countdown thread; place entry in hashmap.
-            int lengthSec = intent.getIntExtra(TimerWidgetProvider.EXTRA_TIMER_LENGTH, 0);
-            Timber.d("starting countdown of %d for process %d. screenOn = %b",lengthSec,appWidgetId, screenOn);
-            // Don't do anything if the length is 0 seconds.
-            if (lengthSec > 0) {
-                CountdownThread countdownThread = new CountdownThread(appWidgetId, lengthSec);
-                timerCountdownsTable.put(appWidgetId, countdownThread);
-                countdownThread.start();
-                PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-
-                @SuppressWarnings("deprecation")
-                PowerManager.WakeLock wakeLock = screenOn
-                        // Old fashioned wake lock needed as we're not within a standard app window
-                        ? powerManager.newWakeLock(SCREEN_BRIGHT_WAKE_LOCK, String.valueOf(appWidgetId))
-                        : powerManager.newWakeLock(PARTIAL_WAKE_LOCK, String.valueOf(appWidgetId));
-                wakeLock.acquire();
-                wakeLocks.put(appWidgetId, wakeLock);
-            }
-        }
+    /** Service action: stop the timer for the widget in the intent, if it's running or paused. */
+    public static final String ACTION_STOP = "tonycase.simpletimer.action.STOP";
 
-        if (!starting) {
-            // stop countdown thread; remove entry from hashmap.
-            CountdownThread thread = timerCountdownsTable.remove(appWidgetId);
-            thread.stopThread();
+    /** Service action: make sure any journaled timers are running, and redraw them. */
+    public static final String ACTION_RESTORE = "tonycase.simpletimer.action.RESTORE";
 
-            // get and release the wakelock
-            PowerManager.WakeLock wakeLock = wakeLocks.remove(appWidgetId);
-            if (wakeLock != null) {
-                wakeLock.release();
-            }
+    // where running timers are journaled
+    private static final String JOURNAL_FILE = "running_timers.journal";
+
+    // the widgets journaled as running when the process started, read once, off the tap's path
+    private static volatile SparseBooleanArray runningAtStart = new SparseBooleanArray();
+
+    // where a trace recorded through dumpsys is written, and how much of one is kept
+    private static final String TRACE_FILE = "timer_trace.bin";
+    private static final int TRACE_BYTES = 1 << 20;
+
+    // One thread ticks all of the running countdowns
+    private TickScheduler scheduler;
+
+    // The timers of all the widgets; this service is the device they run on
+    private TimerEngine engine;
+    // The wake locks, for widgets that keep the display on.  Others are woken by an alarm.
+    private WakeLockArbiter wakeLocks;
+
+    // The running timers, kept on disk.  If the process is killed with timers running, the service is
+    // restarted and picks them up again from their recorded deadlines.
+    private TimerJournal journal;
+
+    // Runs the commands sent to the service, one at a time, off the main thread.
+    private Handler commandHandler;
+    // the latest start id, for stopping once the last alarm is over
+    private volatile int lastStartId;
+    // The start, stop and toggle commands waiting to run, by widget, for merging; see TimerCommand
+    private final SparseArray<TimerCommand> pendingCommands = new SparseArray<>();
 
-            // Stop the service if there are no timers
-            if (timerCountdownsTable.size() == 0) {
-                Timber.d("Stopping service thread and service");
-                // non left, we can end service.
-                stopSelf();
+    // Follows the screen and keyguard, on the command thread.  Nothing is drawn while the widgets can't
+    // be seen; when the home screen is back, the running ones are brought up to date in one batch.
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                engine.setWidgetsVisible(false);
+            } else if (Intent.ACTION_USER_PRESENT.equals(intent.getAction()) || !isKeyguardLocked()) {
+                // unlocked, or a screen on without a keyguard
+                engine.setWidgetsVisible(true);
             }
         }
+    };
+
+    /** Called when a widget is deleted.  If any timers are running, has the service stop its timer. */
+    public static void stopTimer(Context context, int appWidgetId) {
+        if (TimerJournal.hasRecords(new File(context.getFilesDir(), JOURNAL_FILE))) {
+            Intent intent = new Intent(context, CountdownService.class);
+            intent.setAction(ACTION_STOP);
+            intent.putExtra(TimerWidgetProvider.APP_WIDGET_ID, appWidgetId);
+            context.startService(intent);
+        }
+    }
 
-        // If we get killed, after returning from here, let it be
-        return START_NOT_STICKY;
+    /**
+     * Called when the widgets may have lost their state, e.g. on a launcher restart or app update.  If
+     * any timers were running, has the service bring them back and redraw them.
+     */
+    public static void restoreTimers(Context context) {
+        if (TimerJournal.hasRecords(new File(context.getFilesDir(), JOURNAL_FILE))) {
+            Intent intent = new Intent(context, CountdownService.class);
+            intent.setAction(ACTION_RESTORE);
+            context.startService(intent);
+        }
     }
 
-    @Override
-    public IBinder onBind(Intent intent) {
-        // clients not allowed to bind to this service.
-        return null;
+    /**
+     * The widgets whose timers are running or ringing, as journaled, read without starting the
+     * service.  Paused timers are kept in the widgets' configuration instead.
+     */
+    static SparseBooleanArray journaledTimers(Context context) {
+        SparseBooleanArray running = new SparseBooleanArray();
+        File file = new File(context.getFilesDir(), JOURNAL_FILE);
+        if (TimerJournal.hasRecords(file)) {
+            try {
+                for (TimerJournal.Entry entry : TimerJournal.read(file, bootTime())) {
+                    running.put(entry.appWidgetId, true);
+                }
+            } catch (IOException e) {
+                Timber.w(e, "could not read running timers");
+            }
+        }
+        return running;
     }
 
-    // displays the new duration, formatted, in the widget.
-    private void displayNewValue(int appWidgetId, int newDuration) {
+    /** Reads which timers were running when the process started; called once, as the app starts. */
+    static void loadRunningAtStart(Context context) {
+        runningAtStart = journaledTimers(context);
+    }
 
-        // start blinking when count down gets to zero.
-        boolean blink = newDuration <= 0 && newDuration%2 == 0;
+    /** Whether the widget's timer was journaled as running or ringing when the process started. */
+    static boolean wasRunningAtStart(int appWidgetId) {
+        return runningAtStart.get(appWidgetId);
+    }
 
-        // formatted time remaining
-        String formattedDuration = formatDuration(newDuration);
+    // when the device booted, on the wall clock; what the journal's deadlines are relative to
+    private static long bootTime() {
+        return System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    }
 
-        // build the UI, as a RemoteViews object
-        RemoteViews updateViews = buildCountdownViews(getApplicationContext(), formattedDuration, blink);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        scheduler = new TickScheduler(ElapsedRealtimeClock.INSTANCE);
+        scheduler.setFrameListener(WidgetRenderer.getInstance(this));
+        scheduler.setLatenessHistogram(TimerMetrics.INSTANCE.tickLateness);
+        scheduler.setTraceRecorder(TraceRecorder.INSTANCE);
+        startTicking(scheduler);
+        wakeLocks = WakeLockArbiter.getInstance(this);
+        engine = new TimerEngine(scheduler, WidgetRenderer.getInstance(this), wakeLocks,
+                AlarmPlayer.getInstance(this), this, WidgetRenderer.USE_CHRONOMETER);
+
+        journal = new TimerJournal(new File(getFilesDir(), JOURNAL_FILE), bootTime());
+
+        HandlerThread commandThread = new HandlerThread("countdown-commands",
+                Process.THREAD_PRIORITY_FOREGROUND);
+        commandThread.start();
+        commandHandler = new Handler(commandThread.getLooper());
+
+        engine.setWidgetsVisible(isScreenOn() && !isKeyguardLocked());
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        screenFilter.addAction(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_USER_PRESENT);
+        registerReceiver(screenReceiver, screenFilter, null, commandHandler);
+        commandHandler.post(new Runnable() {
+            @Override public void run() {
+                // decoded now, so the alarm is ready to sound the moment a timer reaches zero
+                AlarmPlayer.getInstance(CountdownService.this).prepare();
+                restoreJournaledTimers();
+            }
+        });
+    }
 
-        // Push update for this widget to the home screen
-        AppWidgetManager manager = AppWidgetManager.getInstance(this);
-        manager.updateAppWidget(appWidgetId, updateViews);
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(screenReceiver);
+        // after any commands still queued
+        commandHandler.post(new Runnable() {
+            @Override public void run() {
+                scheduler.shutdown();
+                journal.close();
+                // undoes this service's own prepare; a service started since keeps the sound ready
+                AlarmPlayer.getInstance(CountdownService.this).release();
+                Looper.myLooper().quit();
+            }
+        });
+        super.onDestroy();
     }
 
-    // Currently we support one time format:  M:SS
-    private String formatDuration(int duration) {
-        duration = Math.max(duration, 0);
-        int seconds = duration%60;
-        int minutes = duration/60;
-        return String.format("%d:%02d", minutes, seconds);
+    // Starts the thread that ticks the countdowns.  Tests drive the scheduler by hand instead.
+    void startTicking(TickScheduler scheduler) {
+        scheduler.start();
     }
 
-    // update the widgets view for the new (formatted) time remaining, and whether the time is
-    // currently blinking
-    private RemoteViews buildCountdownViews(Context context, String formattedDuration, boolean blink) {
+    // Brings back the timers that were running when the process last died, all in one pass.  A new
+    // service starts with none running, so this happens once for each time the process is killed.
+    private void restoreJournaledTimers() {
+        List<TimerJournal.Entry> entries;
+        try {
+            entries = journal.restore();
+        } catch (IOException e) {
+            Timber.e(e, "could not restore running timers");
+            return;
+        }
+        Timber.i("restoring %d timers", entries.size());
+        engine.restore(entries);
+    }
 
-        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_face);
-        views.setViewVisibility(R.id.timer_icon, View.GONE);
-        views.setViewVisibility(R.id.text_top, View.GONE);
-        views.setViewVisibility(R.id.text_bottom, View.GONE);
-        views.setViewVisibility(R.id.textView2, View.VISIBLE);
+    // Only queues the work, for the command thread; nothing is done here on the main thread.
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        SystemTrace.begin("onStartCommand");
+        try {
+            return queueWork(intent, startId);
+        } finally {
+            SystemTrace.end();
+        }
+    }
 
-        views.setTextViewText(R.id.textView2, formattedDuration);
+    private int queueWork(final Intent intent, final int startId) {
+        Timber.d("onStartCommand");
+        lastStartId = startId;
 
-        if (blink) {
-            views.setViewVisibility(R.id.textView2, View.INVISIBLE);
+        if (intent == null || ACTION_RESTORE.equals(intent.getAction())) {
+            commandHandler.post(new Runnable() {
+                @Override public void run() {
+                    redrawTimers(startId);
+                }
+            });
+        } else if (ACTION_EXPIRE.equals(intent.getAction())) {
+            final int appWidgetId = intent.getIntExtra(TimerWidgetProvider.APP_WIDGET_ID, -1);
+            commandHandler.post(new Runnable() {
+                @Override public void run() {
+                    expireTimer(appWidgetId, intent, startId);
+                }
+            });
         } else {
-            views.setViewVisibility(R.id.textView2, View.VISIBLE);
+            int type = ACTION_START.equals(intent.getAction()) ? TimerCommand.START
+                    : ACTION_STOP.equals(intent.getAction()) ? TimerCommand.STOP
+                    : TimerCommand.TOGGLE;
+            enqueue(new TimerCommand(type, intent.getIntExtra(TimerWidgetProvider.APP_WIDGET_ID, -1),
+                    intent.getIntExtra(TimerWidgetProvider.EXTRA_TIMER_LENGTH, 0), startId,
+                    intent.getLongExtra(TimerWidgetProvider.EXTRA_TAPPED_AT, TimerCommand.NOT_TAPPED),
+                    intent.getBooleanExtra(TimerWidgetProvider.EXTRA_FIRST_FRAME_SHOWN, false)));
         }
 
-        return views;
+        // If we get killed, come back to restore the running timers
+        return START_STICKY;
     }
 
-    // The countdown thread.  Each timer gets its own.
-    class CountdownThread extends Thread {
+    // Queues a command for its widget, merging it with one still waiting to run, if any.
+    private void enqueue(TimerCommand command) {
+        final int appWidgetId = command.appWidgetId;
+        synchronized (pendingCommands) {
+            TimerCommand pending = pendingCommands.get(appWidgetId);
+            if (pending != null) {
+                // will be picked up when the waiting command runs
+                pendingCommands.put(appWidgetId, TimerCommand.merge(pending, command));
+                return;
+            }
+            pendingCommands.put(appWidgetId, command);
+        }
+        commandHandler.post(new Runnable() {
+            @Override public void run() {
+                TimerCommand command;
+                synchronized (pendingCommands) {
+                    command = pendingCommands.get(appWidgetId);
+                    pendingCommands.remove(appWidgetId);
+                }
+                engine.run(command);
+                stopIfIdle(command.startId);
+            }
+        });
+    }
 
-        private static final long ONE_SECOND = 1000;
+    // Restarted after being killed, or asked to restore: the journaled timers were brought back when
+    // the service was created, if it wasn't already running.  Makes sure they're drawn.
+    private void redrawTimers(int startId) {
+        engine.redraw();
+        stopIfIdle(startId);
+    }
 
-        // the widget id this thread is working for
-        private final int widgetId;
+    // The alarm for a countdown went off; the wake lock the receiver took is held until we're done.
+    private void expireTimer(int appWidgetId, Intent intent, int startId) {
+        engine.expire(appWidgetId);
+        WakefulBroadcastReceiver.completeWakefulIntent(intent);
+        stopIfIdle(startId);
+    }
 
-        // the duration of the timer (reset to this value upon completion or reset)
-        private final int resetTime;
+    // Stops the service if there are no timers, unless it has been started again since startId.
+    private void stopIfIdle(int startId) {
+        if (engine.size() == 0) {
+            Timber.d("Stopping service");
+            stopSelf(startId);
+        }
+    }
 
-        // current remaining time on the countdown.
-        private int currentTime;
+    @Override
+    public boolean keepsScreenOn(int appWidgetId) {
+        return TimerWidgetUtils.getScreenOnForId(this, appWidgetId);
+    }
 
-        // whether this thread should be stopped
-        private boolean stopped = false;
+    @Override
+    public int getDuration(int appWidgetId) {
+        return TimerWidgetUtils.getDurationForId(this, appWidgetId);
+    }
+
+    @Override
+    public long getPausedRemaining(int appWidgetId) {
+        return TimerWidgetUtils.getPausedForId(this, appWidgetId);
+    }
+
+    // A paused timer keeps nothing but the time it had left, here and in the registry, so it survives
+    // the process; it holds no wake lock, alarm or tick until it is resumed.
+    @Override
+    public void setPausedRemaining(int appWidgetId, long remainingMs) {
+        TimerWidgetUtils.persistPausedForId(this, appWidgetId, remainingMs);
+    }
+
+    // an exact alarm, firing even in idle, at the deadline (elapsedRealtime).
+    @Override
+    public void setExpiryAlarm(int appWidgetId, long deadline) {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        PendingIntent operation = expiryIntent(appWidgetId);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, operation);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, operation);
+        } else {
+            alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, deadline, operation);
+        }
+    }
 
-        // the ringtone to play when the time gets to 0.
-        private Ringtone ringtone;
+    @Override
+    public void cancelExpiryAlarm(int appWidgetId) {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(expiryIntent(appWidgetId));
+    }
 
-        // We use the notification manager to send a notification *IF* the screen is currently not on.
-        //  The user can then silence the alarm by tapping the notification.
-        NotificationManager notificationManager =
-                (NotificationManager) getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
+    @Override
+    public void prepareNotification(int appWidgetId) {
+        ExpiryNotifications.getInstance(this).prepare(appWidgetId);
+    }
 
-        CountdownThread(int widgetId, int resetTime) {
+    @Override
+    public void showNotification(int appWidgetId) {
+        Timber.v("sending notification");
+        ExpiryNotifications.getInstance(this).show(appWidgetId);
+    }
 
-            this.widgetId = widgetId;
-            this.resetTime = resetTime;
-            this.currentTime = resetTime;
-            Uri notification = RingtoneManager.getDefaultUri(RingtoneManager.TYPE_ALARM);
-            ringtone = RingtoneManager.getRingtone(getApplicationContext(), notification);
+    @Override
+    public void cancelNotification(int appWidgetId) {
+        ExpiryNotifications.getInstance(this).cancel(appWidgetId);
+    }
+
+    @Override
+    public void timerStarted(int appWidgetId, Countdown countdown) {
+        Timber.d("countdown of %d for %d", countdown.getDurationSec(), appWidgetId);
+        try {
+            journal.recordStart(appWidgetId, countdown.getDurationSec(), countdown.getDeadline());
+        } catch (IOException e) {
+            Timber.e(e, "could not journal start of %d", appWidgetId);
         }
+    }
 
-        @Override
-        public void run() {
-            Timber.d("thread starting");
-
-            long sleepDuration = ONE_SECOND;
-            displayNewValue(widgetId, resetTime);
-
-            while (!stopped) {
-                try {
-                    Thread.sleep(sleepDuration);
-                    currentTime--;
-                    if (currentTime % 10 == 0) {
-                        Timber.v("current time down to %d", currentTime);
-                    }
-                    if (currentTime == 0) {
-                        Timber.d("current time is 0, playing ring town");
-                        ringtone.play();
-
-                        // if screen is off, turn it on.
-                        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-                        boolean isScreenOn = false;
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                            isScreenOn = pm.isInteractive();
-                        } else {
-                            //noinspection deprecation
-                            isScreenOn = pm.isScreenOn();
-                        }
-                        Timber.d("screen " + (isScreenOn ? "on" : "off"));
-                        if (!isScreenOn) {
-                            //new wakelock probably not needed, but I'm leaving this in here for good measure.
-                            PowerManager.WakeLock wl = pm.newWakeLock(SCREEN_BRIGHT_WAKE_LOCK
-                                    | ACQUIRE_CAUSES_WAKEUP, "tag");
-                            wl.acquire();
-                            Context context = getApplicationContext();
-
-                            // including button control
-                            Intent intent = new Intent(context, TimerWidgetProvider.class);
-                            intent.setAction(TimerWidgetProvider.TIMER_EVENT);
-                            intent.putExtra(TimerWidgetProvider.APP_WIDGET_ID, widgetId);
-                            PendingIntent pIntent = PendingIntent.getBroadcast(context,
-                                    0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-                            NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
-                                    .setContentTitle(getString(R.string.time_is_up))
-                                    .setVisibility(Notification.VISIBILITY_PUBLIC)
-                                    .setContentText(getString(R.string.tap_to_dismiss))
-                                    .setContentIntent(pIntent)
-                                    .setSmallIcon(R.drawable.hourglass4b);
-
-                            RemoteViews view = new RemoteViews(getPackageName(), R.layout.notification_layout);
-                            view.setOnClickPendingIntent(R.id.notification_container, pIntent);
-                            builder.setContent(view);
-
-                            Notification noti = builder.build();
-                            noti.flags |= Notification.FLAG_AUTO_CANCEL | Notification.FLAG_LOCAL_ONLY;
-                            // id unique to second of the week, so separate notifications appear
-                            int id = widgetId;
-                            Timber.v("sending notification");
-                            notificationManager.notify(id, noti);
-                        }
-                    }
-                    if (currentTime <= 0) {
-                        sleepDuration = 250;
-                    }
-                    displayNewValue(widgetId, currentTime);
-                    if (currentTime <= -60) {    // plays alarm for 15 seconds, unless stopped
-                        Timber.d("stopping alarm");
-                        ringtone.stop();
-                        stopped = true;
-                        notificationManager.cancel(widgetId);
-
-                        TimerWidgetUtils.buildLabelViews(getApplicationContext(), widgetId, resetTime);
-                    }
-                } catch (InterruptedException e) {
-                    Timber.i("timer thread interupted");
+    @Override
+    public void timerStopped(int appWidgetId) {
+        try {
+            journal.recordStop(appWidgetId);
+        } catch (IOException e) {
+            Timber.e(e, "could not journal stop of %d", appWidgetId);
+        }
+    }
+
+    // on the ticker; the service is stopped from the command thread, once no timer is left
+    @Override
+    public void timerFinished(int appWidgetId) {
+        Timber.d("alarm over for %d", appWidgetId);
+        commandHandler.post(new Runnable() {
+            @Override public void run() {
+                stopIfIdle(lastStartId);
+            }
+        });
+    }
+
+    // Prints the metrics (see TimerMetrics) and recent events, for
+    // "adb shell dumpsys activity service tonycase.simpletimer/.CountdownService [reset]".
+    // "... CountdownService trace start" starts recording a trace, and "trace stop" writes it out.
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length == 2 && "trace".equals(args[0])) {
+            dumpTrace(writer, args[1]);
+            return;
+        }
+        writer.printf("running timers: %d%n", engine.size());
+        wakeLocks.dump(writer);
+        TimerMetrics.INSTANCE.dump(writer);
+        writer.println("recent events:");
+        EventLog.INSTANCE.dump(writer);
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            TimerMetrics.INSTANCE.reset();
+            writer.println("metrics reset");
+        }
+    }
+
+    // Starts or stops recording a trace of the timers, see TraceRecorder
+    private void dumpTrace(PrintWriter writer, String command) {
+        if ("start".equals(command)) {
+            TraceRecorder.INSTANCE.start(TRACE_BYTES);
+            writer.println("recording trace");
+        } else if ("stop".equals(command)) {
+            File file = new File(getFilesDir(), TRACE_FILE);
+            try {
+                int count = TraceRecorder.INSTANCE.stop(file);
+                if (count < 0) {
+                    writer.println("no trace recording");
+                    return;
                 }
+                writer.printf("wrote %d events to %s%n", count, file);
+                writer.printf("adb exec-out run-as %s cat files/%s > %s%n",
+                        getPackageName(), TRACE_FILE, TRACE_FILE);
+            } catch (IOException e) {
+                Timber.e(e, "could not write trace");
+                writer.printf("could not write trace: %s%n", e);
             }
+        } else {
+            writer.println("usage: trace start|stop");
         }
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        // clients not allowed to bind to this service.
+        return null;
+    }
 
-        public void stopThread() {
-            Timber.v("stop thread");
-            TimerWidgetUtils.buildLabelViews(getApplicationContext(), widgetId, resetTime);
-            ringtone.stop();
-            stopped = true;
-            interrupt();
-            notificationManager.cancel(widgetId);
+    // whether the keyguard is up, hiding the home screen
+    private boolean isKeyguardLocked() {
+        KeyguardManager km = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
+        return km.isKeyguardLocked();
+    }
+
+    // whether the display is on
+    @Override
+    public boolean isScreenOn() {
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return pm.isInteractive();
+        } else {
+            //noinspection deprecation
+            return pm.isScreenOn();
         }
     }
+
+    // the broadcast sent by the expiry alarm for a widget
+    private PendingIntent expiryIntent(int appWidgetId) {
+        Intent intent = new Intent(this, TimerWidgetProvider.class);
+        intent.setAction(TimerWidgetProvider.TIMER_EXPIRED);
+        intent.putExtra(TimerWidgetProvider.APP_WIDGET_ID, appWidgetId);
+        return PendingIntent.getBroadcast(this, appWidgetId, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
 }
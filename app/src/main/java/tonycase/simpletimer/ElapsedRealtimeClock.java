@@ -0,0 +1,32 @@
+package tonycase.simpletimer;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * The production {@link Clock}: {@link SystemClock#elapsedRealtime()}, which keeps counting while the
+ * device sleeps.  In ns it is the boot-time clock of a system trace, which traces are recorded on.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 5/21/16.
+ */
+final class ElapsedRealtimeClock implements Clock, TraceRecorder.NanoClock {
+
+    static final ElapsedRealtimeClock INSTANCE = new ElapsedRealtimeClock();
+
+    private ElapsedRealtimeClock() {
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public long nanoTime() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000;
+    }
+}
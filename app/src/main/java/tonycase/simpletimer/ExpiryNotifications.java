@@ -0,0 +1,91 @@
+package tonycase.simpletimer;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.support.v4.app.NotificationCompat;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+/**
+ * The "time is up" notification shown when a timer reaches zero with the screen off.  Each widget's
+ * notification, with its PendingIntent and views, is built ahead of time, when its timer starts, and
+ * kept for the next run; at zero it is only handed to {@link NotificationManager#notify}.
+ *
+ * Tapping the notification stops the widget's timer.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/11/16.
+ */
+final class ExpiryNotifications {
+
+    private static ExpiryNotifications instance;
+
+    private final Context context;
+    private final NotificationManager notificationManager;
+    private final SparseArray<Notification> notifications = new SparseArray<>();
+
+    private ExpiryNotifications(Context context) {
+        this.context = context;
+        this.notificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+    }
+
+    static synchronized ExpiryNotifications getInstance(Context context) {
+        if (instance == null) {
+            instance = new ExpiryNotifications(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** Builds the widget's notification, if it isn't already built. */
+    synchronized void prepare(int appWidgetId) {
+        if (notifications.get(appWidgetId) == null) {
+            notifications.put(appWidgetId, build(appWidgetId));
+        }
+    }
+
+    /** Shows the widget's notification. */
+    void show(int appWidgetId) {
+        Notification notification;
+        synchronized (this) {
+            prepare(appWidgetId);
+            notification = notifications.get(appWidgetId);
+            notification.when = System.currentTimeMillis();
+        }
+        // id unique to the widget, so separate notifications appear
+        boolean section = SystemTrace.begin("notify", appWidgetId);
+        notificationManager.notify(appWidgetId, notification);
+        SystemTrace.end(section);
+    }
+
+    void cancel(int appWidgetId) {
+        notificationManager.cancel(appWidgetId);
+    }
+
+    /** Drops the widget's notification, e.g. when the widget is deleted. */
+    synchronized void forget(int appWidgetId) {
+        notifications.remove(appWidgetId);
+    }
+
+    private Notification build(int appWidgetId) {
+        // stops the timer; a service intent, so as not to replace the widget's own click intent
+        PendingIntent pIntent = TimerWidgetUtils.buildStopIntent(context, appWidgetId);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context)
+                .setContentTitle(context.getString(R.string.time_is_up))
+                .setVisibility(Notification.VISIBILITY_PUBLIC)
+                .setContentText(context.getString(R.string.tap_to_dismiss))
+                .setContentIntent(pIntent)
+                .setSmallIcon(R.drawable.hourglass4b);
+
+        RemoteViews view = new RemoteViews(context.getPackageName(), R.layout.notification_layout);
+        view.setOnClickPendingIntent(R.id.notification_container, pIntent);
+        builder.setContent(view);
+
+        Notification notification = builder.build();
+        notification.flags |= Notification.FLAG_AUTO_CANCEL | Notification.FLAG_LOCAL_ONLY;
+        return notification;
+    }
+}
@@ -3,6 +3,9 @@ package tonycase.simpletimer;
 import android.app.Application;
 import android.util.Log;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 import timber.log.Timber;
 
 /**
@@ -11,6 +14,8 @@ import timber.log.Timber;
  */
 public class TimerWidgetApplication extends Application {
 
+    private static final String EVENT_LOG_TAG = "EventLog";
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -20,6 +25,41 @@ public class TimerWidgetApplication extends Application {
         } else {
             Timber.plant(new CrashReportingTree());
         }
+
+        final Thread.UncaughtExceptionHandler crashHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                Timber.e(ex, "uncaught exception in %s", thread.getName());
+                // in every build, so crashes come with the events that led up to them
+                logRecentEvents();
+                if (crashHandler != null) {
+                    crashHandler.uncaughtException(thread, ex);
+                }
+            }
+        });
+
+        // the timers' work, marked in the system trace, and recorded on its clock
+        SystemTrace.setSink(AndroidTrace.INSTANCE);
+        TraceRecorder.INSTANCE.setClock(ElapsedRealtimeClock.INSTANCE);
+
+        // widget configs are read once, here, and kept in memory; as is which timers were running, for
+        // a tap that arrives before anything has been drawn
+        TimerWidgetUtils.configStore(this);
+        CountdownService.loadRunningAtStart(this);
+    }
+
+    // Writes the recent timer events in the EventLog to logcat, a line at a time, so that nothing is
+    // cut off by logcat's line limit.
+    private static void logRecentEvents() {
+        StringWriter out = new StringWriter();
+        PrintWriter pw = new PrintWriter(out);
+        EventLog.INSTANCE.dump(pw);
+        pw.flush();
+        Log.e(EVENT_LOG_TAG, "recent events:");
+        for (String line : out.toString().split("\n")) {
+            Log.e(EVENT_LOG_TAG, line);
+        }
     }
 
     // Adapted from Timber example
@@ -4,6 +4,14 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
+import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.SparseBooleanArray;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
@@ -18,45 +26,135 @@ public class TimerWidgetProvider extends AppWidgetProvider {
 
     public static final String APP_WIDGET_ID = "app_widget_id";
     public static final String EXTRA_TIMER_LENGTH = "extra_timer_length";
+    public static final String EXTRA_TAPPED_AT = "extra_tapped_at";
+    public static final String EXTRA_FIRST_FRAME_SHOWN = "extra_first_frame_shown";
 
     public static final String TIMER_EVENT = "start_timer";
+    public static final String TIMER_EXPIRED = "timer_expired";
+
+    // runs the refreshes asked for by onUpdate, in order
+    private static ExecutorService refresher;
 
     /** Capture non-framework broadcast events from our widget (e.g. button press events) */
     @Override
     public void onReceive(Context context, Intent intent) {
 
-        Timber.d("onReceive: " + intent);
-        Timber.d("extras: " + intent.getExtras());
+        Timber.d("onReceive: %s", intent.getAction());
         if (intent.getAction().equals(TIMER_EVENT)) {
             timerEvent(context, intent);
+        } else if (intent.getAction().equals(TIMER_EXPIRED)) {
+            timerExpired(context, intent);
         } else {
             super.onReceive(context, intent);
         }
     }
 
-    /** Whenever app is installed or updated.  We don't implement updates, so really just when app is
-     * installed. */
+    /** Whenever app is installed or updated, for all the widgets at once.  We don't implement updates,
+     * so really just when app is installed.  The faces are drawn off the main thread, with the
+     * broadcast kept alive until they are. */
     @Override
-    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-        final int count = appWidgetIds.length;
-
-        for (int i = 0; i < count; i++) {
-            int widgetId = appWidgetIds[i];
-            int duration = TimerWidgetUtils.getDurationForId(context, widgetId);
-            if (duration > 0) {
-                TimerWidgetUtils.buildLabelViews(context, widgetId, duration);
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
+        final Context appContext = context.getApplicationContext();
+        // null when not called for a broadcast
+        final PendingResult result = goAsync();
+        runInBackground(new Runnable() {
+            @Override public void run() {
+                try {
+                    refreshWidgets(appContext, appWidgetIds);
+                } finally {
+                    if (result != null) {
+                        result.finish();
+                    }
+                }
             }
+        });
+    }
+
+    // Runs the refresh on a background thread.  Tests run it in place.
+    void runInBackground(Runnable refresh) {
+        refresher().execute(refresh);
+    }
+
+    private static synchronized ExecutorService refresher() {
+        if (refresher == null) {
+            // a single thread, which goes away when there's nothing to refresh
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            refresher = executor;
         }
+        return refresher;
+    }
+
+    // Draws the widgets' faces from one snapshot of their configuration: paused timers frozen, and
+    // stopped ones with their labels.  Running timers are left to the service, which redraws them, so
+    // that a label never flashes up over a countdown.
+    private static void refreshWidgets(Context context, int[] appWidgetIds) {
+        WidgetConfigStore.Snapshot config = TimerWidgetUtils.configStore(context).snapshot();
+        SparseBooleanArray running = CountdownService.journaledTimers(context);
+        int[] labelIds = new int[appWidgetIds.length];
+        int[] durations = new int[appWidgetIds.length];
+        int labels = 0;
+        for (int widgetId : appWidgetIds) {
+            int duration = config.getDuration(widgetId);
+            long pausedMs = config.getPausedRemaining(widgetId);
+            if (pausedMs != WidgetConfigStore.NOT_PAUSED) {
+                TimerWidgetUtils.buildPausedViews(context, widgetId, pausedMs, duration);
+            } else if (duration > 0 && !running.get(widgetId)) {
+                labelIds[labels] = widgetId;
+                durations[labels] = duration;
+                labels++;
+            }
+        }
+        TimerWidgetUtils.buildLabelViews(context, labelIds, durations, labels);
+
+        // timers running when the process died, or whose faces were lost, are brought back
+        CountdownService.restoreTimers(context);
     }
 
+    /** Widgets removed from the home screen; stop their timers and forget their configuration. */
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        for (int appWidgetId : appWidgetIds) {
+            CountdownService.stopTimer(context, appWidgetId);
+            TimerWidgetUtils.deleteId(context, appWidgetId);
+        }
+    }
+
+    /** A tap on the widget.  A widget showing its label has the first frame of its countdown drawn
+     * here and now, rather than after the hops to the service and its threads; the service then runs
+     * the countdown from the time of the tap. */
     private void timerEvent(Context context, Intent intent) {
+        long tappedAt = SystemClock.elapsedRealtime();
+
+        int appWidgetId = intent.getIntExtra(APP_WIDGET_ID, -1);
+        int lengthSec = intent.getIntExtra(EXTRA_TIMER_LENGTH, 0);
+        EventLog.INSTANCE.record(EventLog.TAP, appWidgetId, lengthSec);
 
-        Timber.d("timer event for " + intent.getIntExtra(APP_WIDGET_ID, -1));;
+        boolean firstFrameShown = lengthSec > 0
+                && WidgetRenderer.getInstance(context).showFirstFrame(appWidgetId, lengthSec, tappedAt);
+        if (firstFrameShown) {
+            TimerMetrics.INSTANCE.tapToFirstFrame.record(SystemClock.elapsedRealtime() - tappedAt);
+        }
 
         // Call Service to handle the event.
         Intent serviceIntent = new Intent(context, CountdownService.class);
-        serviceIntent.putExtra(APP_WIDGET_ID, intent.getIntExtra(APP_WIDGET_ID, -1));
-        serviceIntent.putExtra(EXTRA_TIMER_LENGTH, intent.getIntExtra(EXTRA_TIMER_LENGTH, 0));
+        serviceIntent.putExtra(APP_WIDGET_ID, appWidgetId);
+        serviceIntent.putExtra(EXTRA_TIMER_LENGTH, lengthSec);
+        serviceIntent.putExtra(EXTRA_TAPPED_AT, tappedAt);
+        serviceIntent.putExtra(EXTRA_FIRST_FRAME_SHOWN, firstFrameShown);
         context.startService(serviceIntent);
     }
+
+    /** The exact alarm for a countdown has fired.  Hand it to the service, keeping the device awake
+     * until the service has taken over. */
+    private void timerExpired(Context context, Intent intent) {
+        int appWidgetId = intent.getIntExtra(APP_WIDGET_ID, -1);
+        EventLog.INSTANCE.record(EventLog.EXPIRY_RECEIVED, appWidgetId, 0);
+
+        Intent serviceIntent = new Intent(context, CountdownService.class);
+        serviceIntent.setAction(CountdownService.ACTION_EXPIRE);
+        serviceIntent.putExtra(APP_WIDGET_ID, appWidgetId);
+        WakefulBroadcastReceiver.startWakefulService(context, serviceIntent);
+    }
 }
@@ -4,9 +4,14 @@ import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
-import android.view.View;
-import android.widget.RemoteViews;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
@@ -18,32 +23,20 @@ import timber.log.Timber;
  */
 public final class TimerWidgetUtils {
 
-    // A key for preferences, for whether to keep screen lit during count down.
+    // Keys once used in preferences, for whether to keep screen lit during count down, and the
+    // duration.  Now only read to move old configurations into the WidgetConfigStore.
     private static final String KEEP_SCREEN_ON = "keep_screen_on";
     private static final String DURATION = "duration";
 
+    // the file holding every widget's configuration
+    private static final String CONFIG_FILE = "widget_config.bin";
+
+    private static WidgetConfigStore configStore;
+
     /** Provides a text string for the static widget label, based on the duration in seconds.  Simplifies
      * common times, e.g. 120 seconds becomes "2 Minutes", but leaved complex times in "1:23:45" format */
     public static String[] formatDurationForLabel(int durationSec) {
-
-        int sec = durationSec%60;
-        int minutes = durationSec/60;
-
-        if (minutes == 1 && sec == 0) {
-            return new String[] {"1", "Minute"};
-        }
-        else if (minutes > 0 && sec == 0) {
-            return new String[] {String.valueOf(durationSec/60), "Minutes"};
-        }
-        else if (durationSec == 1) {
-            return new String[] {"1", "Second"};
-        }
-        else if (minutes < 3) {
-            return new String[] {String.valueOf(durationSec), "Seconds"};
-        }
-        else {
-            return new String[] {"Timer", String.format("%d:%02d", minutes, sec)};
-        }
+        return DurationFormatter.formatLabel(durationSec);
     }
 
     /**
@@ -55,20 +48,43 @@ public final class TimerWidgetUtils {
      * @param duration  the duration in seconds of the timer
      */
     public static void buildLabelViews(Context context, int appWidgetId, int duration) {
-        String[] widgetLabel = TimerWidgetUtils.formatDurationForLabel(duration);
+        WidgetRenderer.getInstance(context).showLabel(appWidgetId, duration);
+    }
 
-        // set the initial view
-        RemoteViews remoteViews = new RemoteViews(context.getPackageName(),
-                R.layout.widget_face);
-        remoteViews.setViewVisibility(R.id.textView2, View.GONE);
-        remoteViews.setViewVisibility(R.id.text_top, View.VISIBLE);
-        remoteViews.setViewVisibility(R.id.text_bottom, View.VISIBLE);
-        remoteViews.setViewVisibility(R.id.timer_icon, View.VISIBLE);
+    /**
+     * Shows the labels of the first count widgets, for timers of the given durations.
+     *
+     * @param context  the current context.
+     * @param appWidgetIds  the ids of the widget instances.
+     * @param durations  the duration in seconds of each widget's timer
+     * @param count  the number of widgets
+     */
+    public static void buildLabelViews(Context context, int[] appWidgetIds, int[] durations, int count) {
+        WidgetRenderer.getInstance(context).showLabels(appWidgetIds, durations, count);
+    }
 
-        remoteViews.setTextViewText(R.id.text_top, widgetLabel[0]);
-        remoteViews.setTextViewText(R.id.text_bottom, widgetLabel[1]);
+    /**
+     * Shows the widget's paused timer: the time it had left, frozen, with a reset button.
+     *
+     * @param context  the current context.
+     * @param appWidgetId  the id of the specific widget instance.
+     * @param remainingMs  the time the timer had left when paused
+     * @param duration  the duration in seconds of the timer
+     */
+    public static void buildPausedViews(Context context, int appWidgetId, long remainingMs, int duration) {
+        WidgetRenderer.getInstance(context).showPaused(appWidgetId, Countdown.toDisplaySeconds(remainingMs),
+                duration);
+    }
 
-        // including button control
+    /**
+     * The intent fired when the widget is tapped, which starts, pauses or resumes its timer, or stops
+     * its alarm.
+     *
+     * @param context  the current context.
+     * @param appWidgetId  the id of the specific widget instance.
+     * @param duration  the duration in seconds of the timer
+     */
+    public static PendingIntent buildClickIntent(Context context, int appWidgetId, int duration) {
         Intent intent = new Intent(context, TimerWidgetProvider.class);
         intent.setAction(TimerWidgetProvider.TIMER_EVENT);
         intent.putExtra(TimerWidgetProvider.EXTRA_TIMER_LENGTH, duration);
@@ -78,47 +94,103 @@ public final class TimerWidgetUtils {
         int[] idAsArray = new int[] {appWidgetId};
         intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, idAsArray);
         int uniqueRequestCode = appWidgetId;
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context,
+        Timber.d("setting click event with appWidget Id of %d", appWidgetId);
+        return PendingIntent.getBroadcast(context,
                 uniqueRequestCode, intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        Timber.d("setting click event with appWidget Id of " + appWidgetId);
-        remoteViews.setOnClickPendingIntent(R.id.widget_container, pendingIntent);
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        appWidgetManager.updateAppWidget(appWidgetId, remoteViews);
     }
 
-    private static String key(String base, int appWidgetId) {
-        return String.format("%s_%d", base, appWidgetId);
+    /**
+     * The intent that stops the widget's timer, whatever state it's in, e.g. from the notification or
+     * the reset button of a paused timer.  It goes straight to the service.
+     *
+     * @param context  the current context.
+     * @param appWidgetId  the id of the specific widget instance.
+     */
+    public static PendingIntent buildStopIntent(Context context, int appWidgetId) {
+        Intent intent = new Intent(context, CountdownService.class);
+        intent.setAction(CountdownService.ACTION_STOP);
+        intent.putExtra(TimerWidgetProvider.APP_WIDGET_ID, appWidgetId);
+        return PendingIntent.getService(context, appWidgetId, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * The configuration of all widgets, loaded on first use (when the app starts) and kept in memory
+     * from then on.
+     */
+    public static synchronized WidgetConfigStore configStore(Context context) {
+        if (configStore == null) {
+            // a single writer thread, which goes away when there's nothing to write
+            ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1);
+            writer.setKeepAliveTime(10, TimeUnit.SECONDS);
+            writer.allowCoreThreadTimeOut(true);
+
+            WidgetConfigStore store = new WidgetConfigStore(
+                    new File(context.getFilesDir(), CONFIG_FILE), writer);
+            if (store.exists()) {
+                try {
+                    store.load();
+                } catch (IOException e) {
+                    Timber.e(e, "could not read widget config");
+                }
+            } else {
+                importPreferences(context, store);
+            }
+            configStore = store;
+        }
+        return configStore;
+    }
+
+    // moves configurations saved in preferences, by earlier versions, into the store
+    private static void importPreferences(Context context, WidgetConfigStore store) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            try {
+                if (key.startsWith(DURATION + "_")) {
+                    int appWidgetId = Integer.parseInt(key.substring(DURATION.length() + 1));
+                    store.putDuration(appWidgetId, (Integer) entry.getValue());
+                    editor.remove(key);
+                } else if (key.startsWith(KEEP_SCREEN_ON + "_")) {
+                    int appWidgetId = Integer.parseInt(key.substring(KEEP_SCREEN_ON.length() + 1));
+                    store.putScreenOn(appWidgetId, (Boolean) entry.getValue());
+                    editor.remove(key);
+                }
+            } catch (NumberFormatException | ClassCastException e) {
+                Timber.w("ignoring preference %s", key);
+            }
+        }
+        editor.apply();
     }
 
     public static void persistDurationForId(Context context, int appWidgetId, int durationSec) {
-        PreferenceManager.getDefaultSharedPreferences(context)
-                .edit()
-                .putInt(key(DURATION, appWidgetId), durationSec)
-                .apply();
+        configStore(context).putDuration(appWidgetId, durationSec);
     }
 
     public static int getDurationForId(Context context, int appWidgetId) {
-        return PreferenceManager.getDefaultSharedPreferences(context)
-                .getInt(key(DURATION, appWidgetId), -1);
+        return configStore(context).getDuration(appWidgetId);
     }
 
     public static void persistScreenOnForId(Context context, int appWidgetId, boolean screenOn) {
-        PreferenceManager.getDefaultSharedPreferences(context)
-                         .edit()
-                         .putBoolean(key(KEEP_SCREEN_ON, appWidgetId), screenOn)
-                         .apply();
+        configStore(context).putScreenOn(appWidgetId, screenOn);
     }
 
     public static boolean getScreenOnForId(Context context, int appWidgetId) {
-        return PreferenceManager.getDefaultSharedPreferences(context)
-                                .getBoolean(key(KEEP_SCREEN_ON, appWidgetId), false);
+        return configStore(context).getScreenOn(appWidgetId);
+    }
+
+    public static void persistPausedForId(Context context, int appWidgetId, long remainingMs) {
+        configStore(context).putPausedRemaining(appWidgetId, remainingMs);
+    }
+
+    /** The ms left on the widget's paused timer, or {@link WidgetConfigStore#NOT_PAUSED}. */
+    public static long getPausedForId(Context context, int appWidgetId) {
+        return configStore(context).getPausedRemaining(appWidgetId);
     }
 
     public static void deleteId(Context context, int appWidgetId) {
-        PreferenceManager.getDefaultSharedPreferences(context)
-                .edit()
-                .remove(key(KEEP_SCREEN_ON, appWidgetId))
-                .remove(key(DURATION, appWidgetId))
-                .apply();
+        configStore(context).remove(appWidgetId);
+        WidgetRenderer.getInstance(context).delete(appWidgetId);
+        ExpiryNotifications.getInstance(context).forget(appWidgetId);
     }
 }
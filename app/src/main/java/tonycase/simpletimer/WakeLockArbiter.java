@@ -0,0 +1,128 @@
+package tonycase.simpletimer;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Holds the wake locks for every timer: a single CPU lock and two screen locks, one keeping the screen
+ * on and one turning it on for an alarm, each shared by all the timers that need it.  Each timer holds
+ * a lock only until a given time, e.g. the end of its alarm, and the kernel lock is taken with a
+ * timeout covering the latest of those times, so a timer that is never released can't keep the
+ * device awake past it.  The kernel lock is let go as soon as no timer holds it.
+ *
+ * The time the kernel locks are held is counted in {@link TimerMetrics}.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/12/16.
+ */
+final class WakeLockArbiter implements WakeLocks {
+
+    private static final String[] NAMES = {"cpu", "screen", "wake screen"};
+
+    private static WakeLockArbiter instance;
+
+    private final PowerManager.WakeLock[] locks = new PowerManager.WakeLock[LOCK_COUNT];
+
+    // for each lock, the widgets holding it, and until when (elapsedRealtime)
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final SparseArray<Long>[] holders = new SparseArray[LOCK_COUNT];
+
+    // for each kernel lock, when it was taken and when it times out; 0 if not held
+    private final long[] heldSince = new long[LOCK_COUNT];
+    private final long[] heldUntil = new long[LOCK_COUNT];
+
+    @SuppressWarnings("deprecation")
+    private WakeLockArbiter(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        locks[CPU] = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "simpletimer:cpu");
+        // Old fashioned wake lock needed as we're not within a standard app window.  Re-timed whenever
+        // a timer starts or stops, so only the alarm's own lock may turn the screen back on.
+        locks[SCREEN] = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK, "simpletimer:screen");
+        locks[WAKE_SCREEN] = pm.newWakeLock(PowerManager.SCREEN_BRIGHT_WAKE_LOCK
+                | PowerManager.ACQUIRE_CAUSES_WAKEUP, "simpletimer:wake_screen");
+        for (int lock = 0; lock < LOCK_COUNT; lock++) {
+            // held once however many timers hold it; counted here instead
+            locks[lock].setReferenceCounted(false);
+            holders[lock] = new SparseArray<>();
+        }
+    }
+
+    static synchronized WakeLockArbiter getInstance(Context context) {
+        if (instance == null) {
+            instance = new WakeLockArbiter(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Has the widget's timer hold the lock until the given time (elapsedRealtime), or until released.
+     * Acquiring a lock the timer already holds changes its time.
+     */
+    @Override
+    public synchronized void acquire(int lock, int appWidgetId, long until) {
+        holders[lock].put(appWidgetId, until);
+        update(lock, SystemClock.elapsedRealtime());
+    }
+
+    synchronized void release(int lock, int appWidgetId) {
+        holders[lock].remove(appWidgetId);
+        update(lock, SystemClock.elapsedRealtime());
+    }
+
+    /** Releases every lock the widget's timer holds. */
+    @Override
+    public synchronized void releaseAll(int appWidgetId) {
+        for (int lock = 0; lock < locks.length; lock++) {
+            release(lock, appWidgetId);
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        long now = SystemClock.elapsedRealtime();
+        for (int lock = 0; lock < locks.length; lock++) {
+            pw.printf("%s lock: holders=%d held=%b%n", NAMES[lock], holders[lock].size(),
+                    heldSince[lock] != 0 && heldUntil[lock] > now);
+        }
+    }
+
+    // Takes, re-times or releases the kernel lock to cover the holders that haven't timed out.
+    private void update(int lock, long now) {
+        if (heldSince[lock] != 0 && heldUntil[lock] <= now) {
+            // the kernel lock timed out by itself
+            TimerMetrics.INSTANCE.wakeLockReleased(heldUntil[lock] - heldSince[lock]);
+            heldSince[lock] = 0;
+            heldUntil[lock] = 0;
+        }
+
+        SparseArray<Long> h = holders[lock];
+        long until = 0;
+        for (int i = h.size() - 1; i >= 0; i--) {
+            long holderUntil = h.valueAt(i);
+            if (holderUntil <= now) {
+                h.removeAt(i);
+            } else {
+                until = Math.max(until, holderUntil);
+            }
+        }
+
+        if (until == 0) {
+            if (heldSince[lock] != 0) {
+                locks[lock].release();
+                TimerMetrics.INSTANCE.wakeLockReleased(now - heldSince[lock]);
+                heldSince[lock] = 0;
+                heldUntil[lock] = 0;
+            }
+        } else if (until != heldUntil[lock]) {
+            // re-arms the lock's timeout, longer or shorter
+            locks[lock].acquire(until - now);
+            if (heldSince[lock] == 0) {
+                heldSince[lock] = now;
+            }
+            heldUntil[lock] = until;
+        }
+    }
+}
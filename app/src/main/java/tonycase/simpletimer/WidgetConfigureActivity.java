@@ -56,7 +56,7 @@ public class WidgetConfigureActivity extends AppCompatActivity {
     // done pressed
     @OnClick(R.id.button_done) void doneButtonPressed() {
 
-        Timber.d("Done pressed, configuring widgetId " + appWidgetId);
+        Timber.d("Done pressed, configuring widgetId %d", appWidgetId);
 
         // screenOn determines whether to use a Display On Wakelock, or just a CPU wakelock
         boolean screenOn = screenOnCB.isChecked();
@@ -0,0 +1,459 @@
+package tonycase.simpletimer;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.RemoteViews;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pushes widget faces to the home screen.  It remembers what was last pushed to each widget, and sends
+ * only the properties that changed, through {@link AppWidgetManager#partiallyUpdateAppWidget}.  A full
+ * update, with every view's visibility and the click intent, is sent only when a widget switches
+ * mode, e.g. from its label to a running countdown.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 5/24/16.
+ */
+final class WidgetRenderer implements TickScheduler.FrameListener, TimerDisplay {
+
+    /** Chronometer can count down from API 24 (N).  We build against an earlier SDK, so the setter
+     * is invoked by name. */
+    static final boolean USE_CHRONOMETER = Build.VERSION.SDK_INT >= 24;
+
+    // what the widget face is showing
+    private static final int MODE_LABEL = 1;
+    private static final int MODE_COUNTDOWN = 2;
+    private static final int MODE_CHRONOMETER = 3;
+    private static final int MODE_ALARM = 4;
+    private static final int MODE_PAUSED = 5;
+
+    // The last state pushed to a widget.
+    private static final class ViewState {
+        final int appWidgetId;
+        int mode;
+        // label mode
+        int duration;
+        CharSequence topText;
+        CharSequence bottomText;
+        // countdown mode
+        CharSequence countdownText;
+        // chronometer mode
+        long chronometerBase;
+
+        // a countdown update waiting for the end of the frame
+        boolean pending;
+        boolean pendingFull;
+
+        ViewState(int appWidgetId) {
+            this.appWidgetId = appWidgetId;
+        }
+    }
+
+    // Built for a widget once and reused until it is deleted or its duration changes: the intent fired
+    // when it's tapped, which carries the duration, and its label face.
+    private static final class Built {
+        final int duration;
+        final PendingIntent clickIntent;
+        RemoteViews label;
+
+        Built(int duration, PendingIntent clickIntent) {
+            this.duration = duration;
+            this.clickIntent = clickIntent;
+        }
+    }
+
+    private static WidgetRenderer instance;
+
+    private final Context context;
+    private final AppWidgetManager appWidgetManager;
+    private final SparseArray<ViewState> states = new SparseArray<>();
+    private final SparseArray<Built> built = new SparseArray<>();
+    // the label text, formatted once for each duration shown
+    private final SparseArray<String[]> labelTexts = new SparseArray<>();
+
+    // whether a frame is open, and the widgets with updates waiting for its end
+    private boolean inFrame;
+    private final List<ViewState> pending = new ArrayList<>();
+    // ids sharing one update when the frame is flushed; grown as needed
+    private int[] groupIds = new int[8];
+    // the id of a single widget update, as counted
+    private final int[] singleId = new int[1];
+
+    private final TimerMetrics metrics = TimerMetrics.INSTANCE;
+
+    private WidgetRenderer(Context context) {
+        this.context = context;
+        this.appWidgetManager = AppWidgetManager.getInstance(context);
+    }
+
+    static synchronized WidgetRenderer getInstance(Context context) {
+        if (instance == null) {
+            instance = new WidgetRenderer(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** Shows the static label for a timer of the given duration, which starts the timer when tapped. */
+    @Override
+    public synchronized void showLabel(int appWidgetId, int duration) {
+        long start = System.nanoTime();
+        String[] widgetLabel = labelText(duration);
+        ViewState state = states.get(appWidgetId);
+
+        if (state == null || state.mode != MODE_LABEL) {
+            push(appWidgetId, labelViews(appWidgetId, duration, widgetLabel), true);
+            state = newState(appWidgetId, MODE_LABEL);
+        } else {
+            RemoteViews views = null;
+            if (!TextUtils.equals(state.topText, widgetLabel[0])) {
+                views = partial(views);
+                views.setTextViewText(R.id.text_top, widgetLabel[0]);
+            }
+            if (!TextUtils.equals(state.bottomText, widgetLabel[1])) {
+                views = partial(views);
+                views.setTextViewText(R.id.text_bottom, widgetLabel[1]);
+            }
+            if (state.duration != duration) {
+                // the click intent carries the duration
+                views = partial(views);
+                views.setOnClickPendingIntent(R.id.widget_container, clickIntent(appWidgetId, duration));
+            }
+            if (views != null) {
+                push(appWidgetId, views, false);
+            }
+        }
+        state.duration = duration;
+        state.topText = widgetLabel[0];
+        state.bottomText = widgetLabel[1];
+        metrics.renderTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Shows the labels of the first count widgets, e.g. all of them when the launcher asks for them,
+     * under one lock.  Widgets already showing their label are left alone.
+     */
+    synchronized void showLabels(int[] appWidgetIds, int[] durations, int count) {
+        for (int i = 0; i < count; i++) {
+            showLabel(appWidgetIds[i], durations[i]);
+        }
+    }
+
+    /** Shows the running countdown as text. */
+    @Override
+    public synchronized void showCountdown(int appWidgetId, CharSequence formattedDuration) {
+        ViewState state = states.get(appWidgetId);
+
+        boolean full = state == null || state.mode != MODE_COUNTDOWN;
+        if (full) {
+            state = newState(appWidgetId, MODE_COUNTDOWN);
+        } else if (TextUtils.equals(state.countdownText, formattedDuration)) {
+            return;
+        }
+        state.countdownText = formattedDuration;
+
+        if (inFrame) {
+            // held until the end of the frame, merged with anything already waiting
+            if (!state.pending) {
+                state.pending = true;
+                pending.add(state);
+            }
+            state.pendingFull |= full;
+        } else {
+            groupIds[0] = appWidgetId;
+            pushCountdown(state, full, 1);
+        }
+    }
+
+    /**
+     * Shows a timer's alarm: a blinking zero, which the launcher animates by itself, that stops the
+     * timer when tapped.  The face is a layout of its own, so the widget is redrawn in full when it
+     * switches to and from it.
+     */
+    @Override
+    public synchronized void showAlarm(int appWidgetId, int duration) {
+        long start = System.nanoTime();
+        ViewState state = states.get(appWidgetId);
+        if (state != null && state.mode == MODE_ALARM) {
+            return;
+        }
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_alarm);
+        views.setTextViewText(R.id.alarm_text, DurationFormatter.format(0));
+        // a new layout is inflated afresh, without the label's click intent
+        views.setOnClickPendingIntent(R.id.widget_container, clickIntent(appWidgetId, duration));
+        push(appWidgetId, views, true);
+
+        newState(appWidgetId, MODE_ALARM);
+        metrics.renderTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Shows a paused timer: the seconds it had left, frozen, which resume the timer when tapped, and a
+     * reset button, which stops it.  Like the alarm, the face is a layout of its own.
+     */
+    @Override
+    public synchronized void showPaused(int appWidgetId, int secondsRemaining, int duration) {
+        long start = System.nanoTime();
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_paused);
+        views.setTextViewText(R.id.paused_text, DurationFormatter.format(secondsRemaining));
+        views.setOnClickPendingIntent(R.id.widget_container, clickIntent(appWidgetId, duration));
+        views.setOnClickPendingIntent(R.id.paused_reset,
+                TimerWidgetUtils.buildStopIntent(context, appWidgetId));
+        push(appWidgetId, views, true);
+
+        newState(appWidgetId, MODE_PAUSED);
+        metrics.renderTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    /** Shows a countdown to the given deadline (elapsedRealtime), ticked by the launcher. */
+    @Override
+    public synchronized void showChronometer(int appWidgetId, long deadline) {
+        long start = System.nanoTime();
+        // Chronometer truncates to whole seconds; shift the base so it rounds up, like the text countdown
+        long base = deadline + Countdown.ONE_SECOND - 1;
+        ViewState state = states.get(appWidgetId);
+
+        if (state == null || state.mode != MODE_CHRONOMETER) {
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_face);
+            views.setViewVisibility(R.id.timer_icon, View.GONE);
+            views.setViewVisibility(R.id.text_top, View.GONE);
+            views.setViewVisibility(R.id.text_bottom, View.GONE);
+            views.setViewVisibility(R.id.textView2, View.GONE);
+            views.setViewVisibility(R.id.chronometer, View.VISIBLE);
+
+            views.setChronometer(R.id.chronometer, base, null, true);
+            views.setBoolean(R.id.chronometer, "setCountDown", true);
+            push(appWidgetId, views, true);
+
+            state = newState(appWidgetId, MODE_CHRONOMETER);
+        } else if (state.chronometerBase != base) {
+            RemoteViews views = partial(null);
+            views.setChronometer(R.id.chronometer, base, null, true);
+            push(appWidgetId, views, false);
+        }
+        state.chronometerBase = base;
+        metrics.renderTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * Shows the first frame of a timer just started by a tap, counting down the full duration from
+     * tappedAt, if the widget is showing its label, which it does only while its timer is stopped.
+     * Returns whether it was shown.
+     *
+     * In a new process nothing has been pushed yet, so whether the timer is stopped is decided from
+     * what the app read as it started: it isn't paused, and wasn't journaled as running or ringing.
+     * Nothing is read from disk here.
+     */
+    synchronized boolean showFirstFrame(int appWidgetId, int duration, long tappedAt) {
+        ViewState state = states.get(appWidgetId);
+        boolean stopped = state != null ? state.mode == MODE_LABEL : isStoppedAsStored(appWidgetId);
+        if (!stopped) {
+            return false;
+        }
+        if (USE_CHRONOMETER) {
+            showChronometer(appWidgetId, tappedAt + duration * Countdown.ONE_SECOND);
+        } else {
+            showCountdown(appWidgetId, DurationFormatter.format(duration));
+        }
+        return true;
+    }
+
+    // Whether the widget's timer is stopped, as stored by the service: two lookups in memory.  A timer
+    // started or stopped in this process has been drawn, so it doesn't get here.
+    private boolean isStoppedAsStored(int appWidgetId) {
+        return TimerWidgetUtils.getPausedForId(context, appWidgetId) == WidgetConfigStore.NOT_PAUSED
+                && !CountdownService.wasRunningAtStart(appWidgetId);
+    }
+
+    /** Forgets what was pushed to the widget, so the next push is a full update. */
+    @Override
+    public synchronized void forget(int appWidgetId) {
+        ViewState state = states.get(appWidgetId);
+        if (state != null) {
+            pending.remove(state);
+            states.remove(appWidgetId);
+        }
+    }
+
+    /** Forgets the widget, and everything built for it, once it is deleted. */
+    synchronized void delete(int appWidgetId) {
+        forget(appWidgetId);
+        built.remove(appWidgetId);
+    }
+
+    /** Holds countdown updates until {@link #onFrameEnd()}. */
+    @Override
+    public synchronized void onFrameStart() {
+        inFrame = true;
+    }
+
+    /** Flushes the countdown updates held during the frame, one call for each distinct update, so the
+     * home screen redraws once per tick however many timers are running. */
+    @Override
+    public synchronized void onFrameEnd() {
+        inFrame = false;
+        for (int i = 0; i < pending.size(); i++) {
+            ViewState state = pending.get(i);
+            if (!state.pending) {
+                continue;   // already sent with an earlier group
+            }
+            // gather the widgets getting exactly the same update
+            int count = 0;
+            for (int j = i; j < pending.size(); j++) {
+                ViewState other = pending.get(j);
+                if (other.pending && other.mode == MODE_COUNTDOWN && other.pendingFull == state.pendingFull
+                        && TextUtils.equals(other.countdownText, state.countdownText)) {
+                    if (count == groupIds.length) {
+                        int[] grown = new int[count * 2];
+                        System.arraycopy(groupIds, 0, grown, 0, count);
+                        groupIds = grown;
+                    }
+                    groupIds[count++] = other.appWidgetId;
+                    if (other != state) {
+                        clearPending(other);
+                    }
+                }
+            }
+            boolean full = state.pendingFull;
+            clearPending(state);
+            // a widget switched away from its countdown in the meantime has already been drawn
+            if (state.mode == MODE_COUNTDOWN) {
+                pushCountdown(state, full, count);
+            }
+        }
+        pending.clear();
+    }
+
+    private static void clearPending(ViewState state) {
+        state.pending = false;
+        state.pendingFull = false;
+    }
+
+    // Sends the countdown face in state to the first count widgets of groupIds: the whole face if
+    // full, or otherwise just the text.
+    private void pushCountdown(ViewState state, boolean full, int count) {
+        long start = System.nanoTime();
+        SystemTrace.begin("buildCountdownViews");
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_face);
+        if (full) {
+            views.setViewVisibility(R.id.timer_icon, View.GONE);
+            views.setViewVisibility(R.id.text_top, View.GONE);
+            views.setViewVisibility(R.id.text_bottom, View.GONE);
+            views.setViewVisibility(R.id.chronometer, View.GONE);
+            if (USE_CHRONOMETER) {
+                views.setChronometer(R.id.chronometer, 0, null, false);
+            }
+            views.setViewVisibility(R.id.textView2, View.VISIBLE);
+        }
+        views.setTextViewText(R.id.textView2, state.countdownText);
+        SystemTrace.end();
+
+        if (count == 1) {
+            push(groupIds[0], views, full);
+        } else {
+            int[] ids = new int[count];
+            System.arraycopy(groupIds, 0, ids, 0, count);
+            push(ids, views, full);
+        }
+        metrics.renderTime.record((System.nanoTime() - start) / 1000);
+    }
+
+    // Sends views to one widget, in full or as a partial update, timing the call.  The call is a section
+    // in the system trace, named for the widget; see SystemTrace.
+    private void push(int appWidgetId, RemoteViews views, boolean full) {
+        long start = System.nanoTime();
+        boolean section = SystemTrace.begin(full ? "updateAppWidget" : "partiallyUpdateAppWidget",
+                appWidgetId);
+        if (full) {
+            appWidgetManager.updateAppWidget(appWidgetId, views);
+        } else {
+            appWidgetManager.partiallyUpdateAppWidget(appWidgetId, views);
+        }
+        SystemTrace.end(section);
+        metrics.updateTime.record((System.nanoTime() - start) / 1000);
+        singleId[0] = appWidgetId;
+        metrics.countUpdates(singleId, 1);
+    }
+
+    // Sends views to several widgets in one call, timing it.  Its trace section is named for the first.
+    private void push(int[] appWidgetIds, RemoteViews views, boolean full) {
+        long start = System.nanoTime();
+        boolean section = SystemTrace.begin(full ? "updateAppWidget" : "partiallyUpdateAppWidget",
+                appWidgetIds[0]);
+        if (full) {
+            appWidgetManager.updateAppWidget(appWidgetIds, views);
+        } else {
+            appWidgetManager.partiallyUpdateAppWidget(appWidgetIds, views);
+        }
+        SystemTrace.end(section);
+        metrics.updateTime.record((System.nanoTime() - start) / 1000);
+        metrics.countUpdates(appWidgetIds, appWidgetIds.length);
+    }
+
+    private ViewState newState(int appWidgetId, int mode) {
+        ViewState old = states.get(appWidgetId);
+        if (old != null) {
+            // a countdown still waiting for the end of the frame is out of date
+            clearPending(old);
+        }
+        ViewState state = new ViewState(appWidgetId);
+        state.mode = mode;
+        states.put(appWidgetId, state);
+        return state;
+    }
+
+    // What was built for the widget, for a timer of the given duration; built afresh if its duration
+    // has changed.
+    private Built built(int appWidgetId, int duration) {
+        Built b = built.get(appWidgetId);
+        if (b == null || b.duration != duration) {
+            b = new Built(duration, TimerWidgetUtils.buildClickIntent(context, appWidgetId, duration));
+            built.put(appWidgetId, b);
+        }
+        return b;
+    }
+
+    private PendingIntent clickIntent(int appWidgetId, int duration) {
+        return built(appWidgetId, duration).clickIntent;
+    }
+
+    // The whole label face of the widget.  Never changed once built, so it can be pushed again as is.
+    private RemoteViews labelViews(int appWidgetId, int duration, String[] widgetLabel) {
+        Built b = built(appWidgetId, duration);
+        if (b.label == null) {
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_face);
+            views.setViewVisibility(R.id.textView2, View.GONE);
+            views.setViewVisibility(R.id.chronometer, View.GONE);
+            views.setChronometer(R.id.chronometer, 0, null, false);
+            views.setViewVisibility(R.id.text_top, View.VISIBLE);
+            views.setViewVisibility(R.id.text_bottom, View.VISIBLE);
+            views.setViewVisibility(R.id.timer_icon, View.VISIBLE);
+
+            views.setTextViewText(R.id.text_top, widgetLabel[0]);
+            views.setTextViewText(R.id.text_bottom, widgetLabel[1]);
+            views.setOnClickPendingIntent(R.id.widget_container, b.clickIntent);
+            b.label = views;
+        }
+        return b.label;
+    }
+
+    private String[] labelText(int duration) {
+        String[] label = labelTexts.get(duration);
+        if (label == null) {
+            label = TimerWidgetUtils.formatDurationForLabel(duration);
+            labelTexts.put(duration, label);
+        }
+        return label;
+    }
+
+    // the views for a partial update, created on the first change
+    private RemoteViews partial(RemoteViews views) {
+        return views != null ? views : new RemoteViews(context.getPackageName(), R.layout.widget_face);
+    }
+}
@@ -0,0 +1,290 @@
+package tonycase.simpletimer;
+
+import android.app.AlarmManager;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowAlarmManager;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.util.ReflectionHelpers;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Budgets for what a timer costs the launcher and the system.  Each scenario is run end to end, from
+ * a tap on the widget through the provider and the service to the updates pushed to the home screen,
+ * on Robolectric's clock, and fails if the updates, their parcel bytes, the wake locks taken or the
+ * pending intents created go over budget.  A change that costs more has to raise the budget here.
+ *
+ * The countdowns tick on the test's thread, driven by hand, rather than on the scheduler's own.
+ * Widgets and their renderer outlive each test, so each test has widget ids of its own.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, shadows = {
+        IpcShadows.CountingAppWidgetManager.class, IpcShadows.RealRemoteViews.class,
+        IpcShadows.CountingWakeLock.class, IpcShadows.CountingPendingIntent.class,
+        IpcShadows.UnlockedKeyguard.class})
+public class IpcBudgetTest {
+
+    /** The service, with its countdowns ticked by the test. */
+    public static class HandDrivenService extends CountdownService {
+        TickScheduler scheduler;
+
+        @Override
+        void startTicking(TickScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+    }
+
+    /** The provider, refreshing the widgets in place rather than in the background. */
+    public static class InlineProvider extends TimerWidgetProvider {
+        @Override
+        void runInBackground(Runnable refresh) {
+            refresh.run();
+        }
+    }
+
+    private Context context;
+    private HandDrivenService service;
+    private int startId;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.application;
+        shadowOf((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+                .setIsInteractive(true);
+        service = Robolectric.buildService(HandDrivenService.class).attach().create().get();
+    }
+
+    @Test
+    public void runningTimerMinute() throws Exception {
+        addWidget(101, 5 * 60, true);
+        startMeasuring();
+        tap(101);
+        advance(60 * 1000);
+
+        // one update a second: the countdown, in full once and then only its text.  The expiry alarm
+        // is the only pending intent.
+        assertBudget("running minute", 61, 61 * 400, 1, 1);
+    }
+
+    @Test
+    public void tapDrawsTheFirstFrameAtOnce() throws Exception {
+        addWidget(151, 5 * 60, true);
+        startMeasuring();
+        receiveTap(151);
+
+        // drawn by the receiver, before the service has the tap
+        assertBudget("first frame", 1, 700, 0, 0);
+        assertEquals(1, IpcShadows.fullUpdates);
+
+        // and the service, taking over, has nothing new to draw until the next second
+        startMeasuring();
+        deliverServiceIntents();
+        assertBudget("taken over", 0, 0, 1, 1);
+        advance(1000);
+        assertEquals(1, IpcShadows.partialUpdates);
+    }
+
+    @Test
+    public void tapInANewProcessDrawsTheFirstFrame() throws Exception {
+        // configured in an earlier process, so this one has drawn nothing
+        TimerWidgetUtils.persistDurationForId(context, 161, 5 * 60);
+        TimerWidgetUtils.persistDurationForId(context, 162, 5 * 60);
+        TimerWidgetUtils.persistPausedForId(context, 162, 90 * 1000);
+        startMeasuring();
+        receiveTap(161);
+        receiveTap(162);
+
+        // the stopped timer's first frame, and nothing for the paused one, which the tap resumes
+        assertBudget("first frame, new process", 1, 700, 0, 0);
+        assertEquals(1, IpcShadows.fullUpdates);
+        deliverServiceIntents();
+    }
+
+    @Test
+    public void ringingAlarm() throws Exception {
+        addWidget(201, 10, true);
+        tap(201);
+        advance(10 * 1000 - 1);
+        startMeasuring();
+        advance(Countdown.ALARM_DURATION_MS + 1000);
+
+        // the blinking face, animated by the launcher, then the label once the alarm is over; both
+        // reuse the click intent built for the label
+        assertBudget("ringing", 2, 2 * 700, 0, 0);
+    }
+
+    @Test
+    public void tenTimersStartedTogether() throws Exception {
+        for (int id = 301; id <= 310; id++) {
+            addWidget(id, 5 * 60, true);
+        }
+        startMeasuring();
+        for (int id = 301; id <= 310; id++) {
+            tap(id);
+        }
+        advance(60 * 1000);
+
+        // the first frame of each is drawn as its tap arrives; after that, started in the same second,
+        // they share their frames: one update a second for all of them
+        assertBudget("ten timers", 10 + 60, 70 * 400, 1, 10);
+    }
+
+    @Test
+    public void screenOffTimerHoldsNoWakeLock() throws Exception {
+        addWidget(401, 2 * 60, false);
+        startMeasuring();
+        tap(401);
+        advance(1000);
+        setScreenOn(false);
+        advance(2 * 60 * 1000 + Countdown.ALARM_DURATION_MS);
+
+        // nothing drawn while the screen is off.  At zero the expiry alarm wakes the device, which is
+        // held by the receiver until the service takes over, and then, with the screen turned on, only
+        // while the alarm sounds.  The label is drawn at the end.
+        assertBudget("screen off", 3, 3 * 700, 3, 2);
+        assertEquals(0, service.scheduler.size());
+    }
+
+    @Test
+    public void refreshingAllWidgets() throws Exception {
+        // configured in an earlier process, so nothing has been drawn or built yet
+        int[] ids = new int[40];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = 601 + i;
+            TimerWidgetUtils.persistDurationForId(context, ids[i], (1 + i % 4) * 60);
+        }
+        startMeasuring();
+        new InlineProvider().onUpdate(context, AppWidgetManager.getInstance(context), ids);
+        deliverServiceIntents();
+
+        // each face carries its own click intent, so each widget gets an update of its own
+        assertBudget("first refresh", 40, 40 * 700, 0, 40);
+
+        startMeasuring();
+        new InlineProvider().onUpdate(context, AppWidgetManager.getInstance(context), ids);
+        deliverServiceIntents();
+
+        // the labels are already up, and their intents built
+        assertBudget("second refresh", 0, 0, 0, 0);
+    }
+
+    @Test
+    public void pausedMinute() throws Exception {
+        addWidget(501, 5 * 60, true);
+        tap(501);
+        advance(10 * 1000);
+        tap(501);
+        startMeasuring();
+        advance(60 * 1000);
+
+        // a paused timer is frozen
+        assertBudget("paused minute", 0, 0, 0, 0);
+    }
+
+    // Configures a widget and draws its label, as the configure activity does.
+    private void addWidget(int appWidgetId, int durationSec, boolean keepScreenOn) {
+        TimerWidgetUtils.persistScreenOnForId(context, appWidgetId, keepScreenOn);
+        TimerWidgetUtils.buildLabelViews(context, appWidgetId, durationSec);
+        TimerWidgetUtils.persistDurationForId(context, appWidgetId, durationSec);
+    }
+
+    private void startMeasuring() {
+        IpcShadows.reset();
+    }
+
+    // Taps the widget, as its click intent does, and has the service take it.
+    private void tap(int appWidgetId) {
+        receiveTap(appWidgetId);
+        deliverServiceIntents();
+    }
+
+    // Taps the widget, as far as the receiver.
+    private void receiveTap(int appWidgetId) {
+        Intent intent = new Intent(context, TimerWidgetProvider.class);
+        intent.setAction(TimerWidgetProvider.TIMER_EVENT);
+        intent.putExtra(TimerWidgetProvider.APP_WIDGET_ID, appWidgetId);
+        intent.putExtra(TimerWidgetProvider.EXTRA_TIMER_LENGTH,
+                TimerWidgetUtils.getDurationForId(context, appWidgetId));
+        new TimerWidgetProvider().onReceive(context, intent);
+    }
+
+    private void setScreenOn(boolean on) {
+        shadowOf((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+                .setIsInteractive(on);
+        context.sendBroadcast(new Intent(on ? Intent.ACTION_USER_PRESENT : Intent.ACTION_SCREEN_OFF));
+        deliverServiceIntents();
+    }
+
+    // Moves the clock on by ms, running the ticks and firing the expiry alarms due on the way.
+    private void advance(long ms) {
+        long end = SystemClock.elapsedRealtime() + ms;
+        ShadowAlarmManager alarms = shadowOf((AlarmManager) context.getSystemService(Context.ALARM_SERVICE));
+        while (true) {
+            long next = end;
+            long tick = service.scheduler.nextDueTime();
+            if (tick != TickScheduler.DONE) {
+                next = Math.min(next, tick);
+            }
+            ShadowAlarmManager.ScheduledAlarm alarm = alarms.peekNextScheduledAlarm();
+            if (alarm != null) {
+                next = Math.min(next, alarm.triggerAtTime);
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (next > now) {
+                Robolectric.getForegroundThreadScheduler().advanceBy(next - now);
+                now = next;
+            }
+
+            if (alarm != null && alarm.triggerAtTime <= now) {
+                alarms.getNextScheduledAlarm();
+                new TimerWidgetProvider().onReceive(context, shadowOf(alarm.operation).getSavedIntent());
+                deliverServiceIntents();
+            } else if (tick != TickScheduler.DONE && tick <= now) {
+                service.scheduler.runDue(now);
+                deliverServiceIntents();
+            } else if (now >= end) {
+                return;
+            }
+        }
+    }
+
+    // Hands the intents sent to the service to it, in order, and runs the commands they queue.
+    private void deliverServiceIntents() {
+        ShadowApplication application = ShadowApplication.getInstance();
+        Intent intent;
+        while ((intent = application.getNextStartedService()) != null) {
+            service.onStartCommand(intent, 0, ++startId);
+        }
+        Handler commandHandler = ReflectionHelpers.getField(service, "commandHandler");
+        shadowOf(commandHandler.getLooper()).runToEndOfTasks();
+    }
+
+    private static void assertBudget(String scenario, int updates, long parcelBytes, int wakeLocks,
+            int pendingIntents) {
+        String counts = String.format("%s: %d updates (%d full), %d parcel bytes (largest %d), "
+                        + "%d wake locks, %d pending intents", scenario, IpcShadows.updateCalls,
+                IpcShadows.fullUpdates, IpcShadows.parcelBytes, IpcShadows.largestParcel,
+                IpcShadows.wakeLockAcquires, IpcShadows.pendingIntents);
+        assertTrue(counts, IpcShadows.updateCalls <= updates);
+        assertTrue(counts, IpcShadows.parcelBytes <= parcelBytes);
+        assertTrue(counts, IpcShadows.wakeLockAcquires <= wakeLocks);
+        assertTrue(counts, IpcShadows.pendingIntents <= pendingIntents);
+    }
+}
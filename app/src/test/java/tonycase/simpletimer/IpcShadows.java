@@ -0,0 +1,153 @@
+package tonycase.simpletimer;
+
+import android.app.KeyguardManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Parcel;
+import android.os.PowerManager;
+import android.widget.RemoteViews;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowAppWidgetManager;
+import org.robolectric.shadows.ShadowKeyguardManager;
+import org.robolectric.shadows.ShadowPendingIntent;
+import org.robolectric.shadows.ShadowPowerManager;
+
+/**
+ * Robolectric shadows that count what the app costs the rest of the system: the updates sent to the
+ * launcher and the size of their parcels, the wake locks taken and the pending intents created.  The
+ * counts are kept across instances, and cleared by {@link #reset()}.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+public final class IpcShadows {
+
+    // a binder, as flattened into a parcel on the device
+    private static final int FLAT_BINDER_BYTES = 24;
+
+    static int updateCalls;
+    static int fullUpdates;
+    static int partialUpdates;
+    static long parcelBytes;
+    static int largestParcel;
+    static int wakeLockAcquires;
+    static int pendingIntents;
+
+    private IpcShadows() {
+    }
+
+    static void reset() {
+        updateCalls = 0;
+        fullUpdates = 0;
+        partialUpdates = 0;
+        parcelBytes = 0;
+        largestParcel = 0;
+        wakeLockAcquires = 0;
+        pendingIntents = 0;
+    }
+
+    // counts one call to the launcher, carrying views
+    private static void countUpdate(RemoteViews views, boolean full) {
+        updateCalls++;
+        if (full) {
+            fullUpdates++;
+        } else {
+            partialUpdates++;
+        }
+        Parcel parcel = Parcel.obtain();
+        views.writeToParcel(parcel, 0);
+        int size = parcel.dataSize();
+        parcel.recycle();
+        parcelBytes += size;
+        largestParcel = Math.max(largestParcel, size);
+    }
+
+    /** Counts the updates sent to the launcher, without drawing them. */
+    @Implements(AppWidgetManager.class)
+    public static class CountingAppWidgetManager extends ShadowAppWidgetManager {
+
+        @Override @Implementation
+        public void updateAppWidget(int[] appWidgetIds, RemoteViews views) {
+            countUpdate(views, true);
+        }
+
+        @Override @Implementation
+        public void updateAppWidget(int appWidgetId, RemoteViews views) {
+            countUpdate(views, true);
+        }
+
+        @Implementation
+        public void partiallyUpdateAppWidget(int[] appWidgetIds, RemoteViews views) {
+            countUpdate(views, false);
+        }
+
+        @Implementation
+        public void partiallyUpdateAppWidget(int appWidgetId, RemoteViews views) {
+            countUpdate(views, false);
+        }
+    }
+
+    /**
+     * Leaves RemoteViews to the framework's own code, so that the actions set on them are written to
+     * the parcel, as on the device.
+     */
+    @Implements(RemoteViews.class)
+    public static class RealRemoteViews {
+    }
+
+    /** Counts every time a wake lock is taken, or its timeout renewed. */
+    @Implements(PowerManager.WakeLock.class)
+    public static class CountingWakeLock extends ShadowPowerManager.ShadowWakeLock {
+
+        @Override @Implementation
+        public synchronized void acquire(long timeout) {
+            wakeLockAcquires++;
+            super.acquire(timeout);
+        }
+    }
+
+    /** Counts the pending intents created. */
+    @Implements(PendingIntent.class)
+    public static class CountingPendingIntent extends ShadowPendingIntent {
+
+        @Implementation
+        public static PendingIntent getBroadcast(Context context, int requestCode, Intent intent, int flags) {
+            pendingIntents++;
+            return ShadowPendingIntent.getBroadcast(context, requestCode, intent, flags);
+        }
+
+        @Implementation
+        public static PendingIntent getService(Context context, int requestCode, Intent intent, int flags) {
+            pendingIntents++;
+            return ShadowPendingIntent.getService(context, requestCode, intent, flags);
+        }
+
+        @Implementation
+        public static PendingIntent getActivity(Context context, int requestCode, Intent intent, int flags) {
+            pendingIntents++;
+            return ShadowPendingIntent.getActivity(context, requestCode, intent, flags);
+        }
+
+        // the shadowed intents have no binder of their own to write
+        @Implementation
+        public void writeToParcel(Parcel out, int flags) {
+            for (int i = 0; i < FLAT_BINDER_BYTES; i += 8) {
+                out.writeLong(0);
+            }
+        }
+    }
+
+    /** No keyguard, so the widgets can be seen whenever the screen is on. */
+    @Implements(KeyguardManager.class)
+    public static class UnlockedKeyguard extends ShadowKeyguardManager {
+
+        @Implementation
+        public boolean isKeyguardLocked() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package tonycase.simpletimer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-widget config lookups made on every tap: the {@link WidgetConfigStore}, against the
+ * SharedPreferences scheme it replaced, where each lookup built a "duration_N" key with String.format
+ * and read it from a locked HashMap.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/4/16.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigLookupBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int widgets;
+
+    private File file;
+    private ScheduledExecutorService writer;
+    private WidgetConfigStore store;
+    // what SharedPreferences keeps in memory
+    private final Map<String, Object> prefs = new HashMap<>();
+    private int[] ids;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = File.createTempFile("widget_config", ".bin");
+        writer = Executors.newSingleThreadScheduledExecutor();
+        store = new WidgetConfigStore(file, writer);
+        ids = new int[widgets];
+        for (int i = 0; i < widgets; i++) {
+            // widget ids are handed out in order, but not contiguously
+            ids[i] = 3 * i + 7;
+            store.putDuration(ids[i], 60 * (i + 1));
+            store.putScreenOn(ids[i], i % 2 == 0);
+            prefs.put(legacyKey("duration", ids[i]), 60 * (i + 1));
+            prefs.put(legacyKey("keep_screen_on", ids[i]), i % 2 == 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        writer.shutdownNow();
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    private int nextId() {
+        next = next + 1 == ids.length ? 0 : next + 1;
+        return ids[next];
+    }
+
+    @Benchmark
+    public int storeDuration() {
+        return store.getDuration(nextId());
+    }
+
+    @Benchmark
+    public boolean storeScreenOn() {
+        return store.getScreenOn(nextId());
+    }
+
+    @Benchmark
+    public int prefsDuration() {
+        String key = legacyKey("duration", nextId());
+        synchronized (prefs) {
+            Integer v = (Integer) prefs.get(key);
+            return v != null ? v : -1;
+        }
+    }
+
+    @Benchmark
+    public boolean prefsScreenOn() {
+        String key = legacyKey("keep_screen_on", nextId());
+        synchronized (prefs) {
+            Boolean v = (Boolean) prefs.get(key);
+            return v != null ? v : false;
+        }
+    }
+
+    private static String legacyKey(String base, int appWidgetId) {
+        return String.format("%s_%d", base, appWidgetId);
+    }
+}
@@ -0,0 +1,77 @@
+package tonycase.simpletimer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of the countdown text, done for every widget on every tick, and of the widget labels.
+ * Each call formats the next duration of a one hour countdown, so the cache is measured warm, as it
+ * is after the first run of a timer.  The stringFormat benchmarks are the String.format code this
+ * replaced.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/4/16.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DurationFormatBenchmark {
+
+    private static final int DURATIONS = 60 * 60;
+
+    private final char[] buf = new char[16];
+    private int durationSec;
+
+    private int next() {
+        durationSec = durationSec == 0 ? DURATIONS - 1 : durationSec - 1;
+        return durationSec;
+    }
+
+    @Benchmark
+    public CharSequence format() {
+        return DurationFormatter.format(next());
+    }
+
+    @Benchmark
+    public int formatTo() {
+        return DurationFormatter.formatTo(next(), buf);
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        int duration = next();
+        return String.format("%d:%02d", duration / 60, duration % 60);
+    }
+
+    @Benchmark
+    public String[] formatLabel() {
+        return DurationFormatter.formatLabel(next());
+    }
+
+    @Benchmark
+    public String[] stringFormatLabel() {
+        int duration = next();
+        int sec = duration % 60;
+        int minutes = duration / 60;
+        if (minutes == 1 && sec == 0) {
+            return new String[] {"1", "Minute"};
+        } else if (minutes > 0 && sec == 0) {
+            return new String[] {String.valueOf(duration / 60), "Minutes"};
+        } else if (duration == 1) {
+            return new String[] {"1", "Second"};
+        } else if (minutes < 3) {
+            return new String[] {String.valueOf(duration), "Seconds"};
+        } else {
+            return new String[] {"Timer", String.format("%d:%02d", minutes, sec)};
+        }
+    }
+}
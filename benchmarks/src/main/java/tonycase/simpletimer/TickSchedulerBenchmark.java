@@ -0,0 +1,99 @@
+package tonycase.simpletimer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The countdown scheduling with many timers running.  The {@link TickScheduler} is driven by hand
+ * through {@link TickScheduler#runDue(long)}, without its thread; each timer does the work of a
+ * widget's tick short of drawing: checking its {@link Countdown}, formatting the time left and
+ * picking its next tick.
+ *
+ * frame is one tick of every timer.  startStop is a tap starting and stopping one more timer while
+ * the others run.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/4/16.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickSchedulerBenchmark {
+
+    // the longest duration whose text is cached, so the ticks measure the scheduler rather than
+    // allocation, and timers rarely restart during a run
+    private static final int DURATION_SEC = DurationFormatter.CACHE_LIMIT - 1;
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int timers;
+
+    private TickScheduler scheduler;
+    private TimerTask extra;
+    private long now;
+
+    // a widget's countdown, restarted when it runs out
+    private static final class TimerTask implements TickScheduler.Task {
+        Countdown countdown;
+        CharSequence shown;
+
+        TimerTask(long startedAt) {
+            countdown = new Countdown(startedAt, DURATION_SEC);
+        }
+
+        @Override
+        public long onTick(long now) {
+            if (countdown.isExpired(now)) {
+                countdown = new Countdown(now, DURATION_SEC);
+            }
+            shown = DurationFormatter.format(countdown.secondsRemaining(now));
+            return countdown.nextTick(now);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scheduler = new TickScheduler(new Clock() {
+            @Override public long now() {
+                return now;
+            }
+        });
+        for (int i = 0; i < timers; i++) {
+            // started at scattered times, then aligned to the frame as the service does
+            long start = scheduler.alignToFrame(i * 37);
+            scheduler.schedule(new TimerTask(start), start);
+        }
+        extra = new TimerTask(0);
+        now = scheduler.runDue(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Benchmark
+    public long frame() {
+        now = scheduler.runDue(now);
+        return now;
+    }
+
+    @Benchmark
+    public int startStop() {
+        scheduler.schedule(extra, scheduler.alignToFrame(now));
+        scheduler.cancel(extra);
+        return scheduler.size();
+    }
+}
@@ -0,0 +1,24 @@
+package tonycase.simpletimer;
+
+/**
+ * Sounds the alarms of timers reaching zero.  In the app this is AlarmPlayer; the simulator counts
+ * the alarms sounding.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+interface AlarmSound {
+
+    /** Returned by {@link #play()} when no sound could be played. */
+    int NO_ALARM = 0;
+
+    /**
+     * Starts an alarm sounding, until stopped.
+     *
+     * @return  a handle for {@link #stop(int)}, or {@link #NO_ALARM}
+     */
+    int play();
+
+    /** Stops an alarm started by {@link #play()}.  Stopping one that has stopped does nothing. */
+    void stop(int handle);
+}
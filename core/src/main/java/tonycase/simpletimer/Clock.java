@@ -0,0 +1,14 @@
+package tonycase.simpletimer;
+
+/**
+ * A monotonic time source, in ms.  In the app this is ElapsedRealtimeClock; tests and the simulator
+ * use a clock they move by hand.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 5/21/16.
+ */
+interface Clock {
+
+    /** Milliseconds since some fixed point; never goes backwards. */
+    long now();
+}
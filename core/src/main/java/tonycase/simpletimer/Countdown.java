@@ -0,0 +1,87 @@
+package tonycase.simpletimer;
+
+/**
+ * The timing of a single countdown, kept as an absolute deadline on a monotonic {@link Clock}.  Nothing
+ * is counted tick by tick; the time remaining is worked out from the deadline whenever it is asked for,
+ * so a late or missed tick never makes the timer itself late.
+ *
+ * Before the deadline the display shows whole seconds remaining, rounded up.  After the deadline the
+ * alarm phase runs for {@link #ALARM_DURATION_MS}, with the display blinking; the blinking is done by
+ * the launcher, so nothing changes on our side until the alarm phase ends.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 5/21/16.
+ */
+final class Countdown {
+
+    static final long ONE_SECOND = 1000;
+    static final long ALARM_DURATION_MS = 15 * ONE_SECOND;
+
+    // the length of the countdown, in seconds
+    private final int durationSec;
+
+    // the time, on the clock, at which the countdown reaches zero
+    private final long deadline;
+
+    /** A countdown of durationSec, starting now. */
+    Countdown(Clock clock, int durationSec) {
+        this(clock.now(), durationSec);
+    }
+
+    /** A countdown of durationSec, started at startedAt on the clock's time base. */
+    Countdown(long startedAt, int durationSec) {
+        this.durationSec = durationSec;
+        this.deadline = startedAt + durationSec * ONE_SECOND;
+    }
+
+    /** A countdown of durationSec reaching zero at deadline, e.g. one restored after a restart. */
+    static Countdown endingAt(long deadline, int durationSec) {
+        return new Countdown(deadline - durationSec * ONE_SECOND, durationSec);
+    }
+
+    int getDurationSec() {
+        return durationSec;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    /** Whether the deadline has been reached. */
+    boolean isExpired(long now) {
+        return now >= deadline;
+    }
+
+    /** Whether the alarm phase following the deadline is over. */
+    boolean isAlarmOver(long now) {
+        return now - deadline >= ALARM_DURATION_MS;
+    }
+
+    /** Whole seconds remaining, rounded up, so the display reads 0 only at the deadline. */
+    int secondsRemaining(long now) {
+        return toDisplaySeconds(deadline - now);
+    }
+
+    /** The ms remaining until the deadline; 0 once it's reached. */
+    long millisRemaining(long now) {
+        return Math.max(0, deadline - now);
+    }
+
+    /** ms remaining as the display shows them: whole seconds, rounded up. */
+    static int toDisplaySeconds(long remainingMs) {
+        if (remainingMs <= 0) {
+            return 0;
+        }
+        return (int) ((remainingMs + ONE_SECOND - 1) / ONE_SECOND);
+    }
+
+    /** The next time at which the display changes: a second boundary, or the end of the alarm. */
+    long nextTick(long now) {
+        long remaining = deadline - now;
+        if (remaining > 0) {
+            // the displayed value drops when the remaining time reaches the next whole second below it
+            return deadline - (secondsRemaining(now) - 1) * ONE_SECOND;
+        }
+        return deadline + ALARM_DURATION_MS;
+    }
+}
@@ -0,0 +1,117 @@
+package tonycase.simpletimer;
+
+/**
+ * Formats durations for display without creating garbage on each tick.  Durations are shown as M:SS,
+ * or H:MM:SS from an hour up, formatted by hand into a reused per-thread buffer rather than through
+ * String.format.  Each of the 3,600 durations under an hour is formatted once and cached, at most
+ * a couple of hundred KB; a countdown shows each value only once, but repeats them every time it is
+ * run.  The text must outlive the call, as the renderer holds it until the end of the frame, so a
+ * duration of an hour or more costs one short String each time it is formatted.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 5/27/16.
+ */
+final class DurationFormatter {
+
+    /** Durations below this many seconds (an hour) are cached. */
+    static final int CACHE_LIMIT = 60 * 60;
+
+    // longest output: 6 digits of hours, two separators, MM and SS; with room to spare
+    private static final int MAX_LENGTH = 16;
+
+    // Formatted durations, filled in as needed.  The array is created, and safely published to every
+    // thread, when the class is first used.  Racing threads at worst format a value twice; Strings
+    // are immutable, so any thread that sees one sees it whole.
+    private static final class Cache {
+        static final String[] STRINGS = new String[CACHE_LIMIT];
+    }
+
+    // scratch space for formatting, one per thread
+    private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>() {
+        @Override protected char[] initialValue() {
+            return new char[MAX_LENGTH];
+        }
+    };
+
+    private DurationFormatter() {
+    }
+
+    /** The duration, in seconds, as M:SS or H:MM:SS.  Negative durations show as 0:00. */
+    static CharSequence format(int durationSec) {
+        durationSec = Math.max(durationSec, 0);
+        if (durationSec >= CACHE_LIMIT) {
+            char[] buf = buffers.get();
+            return new String(buf, 0, formatTo(durationSec, buf));
+        }
+        String[] strings = Cache.STRINGS;
+        String formatted = strings[durationSec];
+        if (formatted == null) {
+            char[] buf = buffers.get();
+            formatted = strings[durationSec] = new String(buf, 0, formatTo(durationSec, buf));
+        }
+        return formatted;
+    }
+
+    /**
+     * Writes the duration, as M:SS or H:MM:SS, into buf, which must have room for 16 chars.
+     *
+     * @return the number of chars written
+     */
+    static int formatTo(int durationSec, char[] buf) {
+        durationSec = Math.max(durationSec, 0);
+        int hours = durationSec / 3600;
+        int minutes = durationSec / 60 % 60;
+        int seconds = durationSec % 60;
+
+        int pos = 0;
+        if (hours > 0) {
+            pos = writeInt(hours, buf, pos);
+            buf[pos++] = ':';
+            buf[pos++] = (char) ('0' + minutes / 10);
+            buf[pos++] = (char) ('0' + minutes % 10);
+        } else {
+            pos = writeInt(minutes, buf, pos);
+        }
+        buf[pos++] = ':';
+        buf[pos++] = (char) ('0' + seconds / 10);
+        buf[pos++] = (char) ('0' + seconds % 10);
+        return pos;
+    }
+
+    // writes a non-negative int at pos, returning the position after it
+    private static int writeInt(int value, char[] buf, int pos) {
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    /** The two lines of a widget's label for a timer of durationSec, e.g. "2" over "Minutes", or
+     * "Timer" over "1:23:45" for times that don't simplify. */
+    static String[] formatLabel(int durationSec) {
+
+        int sec = durationSec%60;
+        int minutes = durationSec/60;
+
+        if (minutes == 1 && sec == 0) {
+            return new String[] {"1", "Minute"};
+        }
+        else if (minutes > 0 && sec == 0) {
+            return new String[] {String.valueOf(durationSec/60), "Minutes"};
+        }
+        else if (durationSec == 1) {
+            return new String[] {"1", "Second"};
+        }
+        else if (minutes < 3) {
+            return new String[] {String.valueOf(durationSec), "Seconds"};
+        }
+        else {
+            return new String[] {"Timer", format(durationSec).toString()};
+        }
+    }
+}
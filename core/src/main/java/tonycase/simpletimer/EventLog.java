@@ -0,0 +1,136 @@
+package tonycase.simpletimer;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A record of recent timer events, kept for diagnosing problems in the field.  Each event is a few
+ * numbers (what happened, to which widget, when, and a value that depends on the event) written into
+ * a fixed ring of primitive arrays, so recording one takes no lock and allocates nothing; the oldest
+ * events are overwritten.  Events are only turned into text when the log is dumped.
+ *
+ * A record being overwritten while the log is dumped is skipped rather than printed torn.
+ *
+ * Every event is also passed to a {@link TraceRecorder}, which keeps them only while it records.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/9/16.
+ */
+final class EventLog {
+
+    // events, and what their value holds
+    /** A widget was tapped; the timer length in seconds. */
+    static final int TAP = 1;
+    /** The service ran a command; its {@link TimerCommand} type. */
+    static final int COMMAND = 2;
+    /** A timer started; its deadline. */
+    static final int START = 3;
+    /** A timer was stopped; the seconds it had left. */
+    static final int STOP = 4;
+    /** A timer ticked, every tenth second; the seconds left. */
+    static final int TICK = 5;
+    /** A timer's alarm went off; how many ms after the deadline. */
+    static final int ALARM = 6;
+    /** A timer's alarm finished sounding. */
+    static final int ALARM_OVER = 7;
+    /** A journaled timer was brought back; its deadline. */
+    static final int RESTORE = 8;
+    /** The expiry alarm for a timer was received. */
+    static final int EXPIRY_RECEIVED = 9;
+    /** The widgets became visible (1) or hidden (0), with the screen or keyguard; no widget. */
+    static final int WIDGETS_VISIBLE = 10;
+    /** A timer was paused; the ms it had left. */
+    static final int PAUSE = 11;
+    /** A paused timer was resumed; its new deadline. */
+    static final int RESUME = 12;
+
+    private static final String[] NAMES = {"?", "tap", "command", "start", "stop", "tick", "alarm",
+            "alarm over", "restore", "expiry received", "widgets visible", "pause", "resume"};
+
+    static final EventLog INSTANCE = new EventLog(512, TraceRecorder.INSTANCE);
+
+    private final int mask;
+    private final int[] events;
+    private final int[] widgetIds;
+    private final long[] times;
+    private final long[] values;
+    // for each slot, the sequence number of the record in it, plus one; negative while being written
+    private final AtomicLongArray published;
+    private final AtomicLong next = new AtomicLong();
+    private final TraceRecorder recorder;
+
+    /** @param capacity  the number of events kept; rounded up to a power of two */
+    EventLog(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity  the number of events kept; rounded up to a power of two
+     * @param recorder  also told of every event, or null
+     */
+    EventLog(int capacity, TraceRecorder recorder) {
+        this.recorder = recorder;
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = size - 1;
+        events = new int[size];
+        widgetIds = new int[size];
+        times = new long[size];
+        values = new long[size];
+        published = new AtomicLongArray(size);
+    }
+
+    /** Records an event, timed now on the wall clock. */
+    void record(int event, int appWidgetId, long value) {
+        record(event, appWidgetId, value, System.currentTimeMillis());
+    }
+
+    void record(int event, int appWidgetId, long value, long time) {
+        long seq = next.getAndIncrement();
+        int i = (int) (seq & mask);
+        published.set(i, -(seq + 1));
+        events[i] = event;
+        widgetIds[i] = appWidgetId;
+        times[i] = time;
+        values[i] = value;
+        published.set(i, seq + 1);
+        if (recorder != null) {
+            recorder.record(event, appWidgetId, value);
+        }
+    }
+
+    /** The name of an event, as dumped. */
+    static String nameOf(int event) {
+        return event > 0 && event < NAMES.length ? NAMES[event] : NAMES[0];
+    }
+
+    /** The number of events recorded since the log was created. */
+    long count() {
+        return next.get();
+    }
+
+    /** Prints the events still held, oldest first, one per line. */
+    void dump(PrintWriter pw) {
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        long end = next.get();
+        for (long seq = Math.max(0, end - events.length); seq < end; seq++) {
+            int i = (int) (seq & mask);
+            if (published.get(i) != seq + 1) {
+                continue;   // overwritten, or still being written
+            }
+            int event = events[i];
+            int appWidgetId = widgetIds[i];
+            long time = times[i];
+            long value = values[i];
+            if (published.get(i) != seq + 1) {
+                continue;   // overwritten while we read it
+            }
+            date.setTime(time);
+            pw.printf("%s %s widget=%d value=%d%n", format.format(date), nameOf(event), appWidgetId, value);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package tonycase.simpletimer;
+
+import java.io.PrintWriter;
+
+/**
+ * A histogram of latencies, in the manner of HdrHistogram: each power of two is split into 32 linear
+ * buckets, so any recorded value is kept to within about 3%, over a range of many orders of magnitude,
+ * in a few hundred counters.  Recording allocates nothing, so it can be done on every tick.
+ *
+ * Values are in whatever unit the caller uses; those above the highest trackable value are counted in
+ * the top bucket, though the maximum is kept exactly.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/6/16.
+ */
+final class LatencyHistogram {
+
+    // each power of two range is split into 2^SUB_BUCKET_BITS buckets
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts;
+    private long count;
+    private long total;
+    private long max;
+
+    /** @param highestTrackableValue  the largest value kept to full precision */
+    LatencyHistogram(long highestTrackableValue) {
+        counts = new long[bucketOf(highestTrackableValue) + 1];
+    }
+
+    /** Records one value.  Negative values are recorded as 0. */
+    synchronized void record(long value) {
+        value = Math.max(value, 0);
+        counts[Math.min(bucketOf(value), counts.length - 1)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    synchronized long getCount() {
+        return count;
+    }
+
+    synchronized long getMax() {
+        return max;
+    }
+
+    synchronized double getMean() {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    /**
+     * The value that percentile percent of the recorded values are at or below, to the precision of
+     * the buckets.  0 if nothing was recorded.
+     */
+    synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // the highest value in the bucket, but no more than was seen; the top bucket also
+                // holds everything out of range
+                return i == counts.length - 1 ? max : Math.min(lowestValueOf(i + 1) - 1, max);
+            }
+        }
+        return max;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    /** Prints a one line summary: the count, mean, median, 90th, 99th percentiles and the maximum. */
+    synchronized void print(PrintWriter pw, String name, String unit) {
+        pw.printf("%s (%s): count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d%n", name, unit, count,
+                getMean(), getValueAtPercentile(50), getValueAtPercentile(90),
+                getValueAtPercentile(99), max);
+    }
+
+    // Values below SUB_BUCKETS each have their own bucket.  Above that, a value with its highest bit at
+    // e is shifted down to its top SUB_BUCKET_BITS + 1 bits, which pick one of SUB_BUCKETS buckets
+    // for that power of two.
+    private static int bucketOf(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift = Math.max(0, highestBit - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long lowestValueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        return (long) (bucket - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+}
@@ -0,0 +1,99 @@
+package tonycase.simpletimer;
+
+/**
+ * Named sections in the system trace (systrace, Perfetto), so that the timers' work shows up by name in
+ * a capture.  The core marks its sections here, knowing nothing of Android; the app hands in a
+ * {@link Sink} that passes them to android.os.Trace.  Without one, e.g. in tests and benchmarks, they
+ * go nowhere.
+ *
+ * Sections named for a widget, e.g. "tick 42", are only named, and so only allocate, while tracing is
+ * on.  Sections end on the thread that began them, in reverse order; async sections, e.g. a timer
+ * from start to stop, may begin and end anywhere, and are matched by name and widget id.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+final class SystemTrace {
+
+    /** Where the sections go. */
+    interface Sink {
+
+        /** Whether a trace is being captured. */
+        boolean isEnabled();
+
+        void beginSection(String name);
+
+        void endSection();
+
+        void beginAsyncSection(String name, int cookie);
+
+        void endAsyncSection(String name, int cookie);
+    }
+
+    private static volatile Sink sink;
+
+    private SystemTrace() {
+    }
+
+    /** Sends the sections to sink from now on, or nowhere if null.  Set once, at startup. */
+    static void setSink(Sink sink) {
+        SystemTrace.sink = sink;
+    }
+
+    /** Begins a section on this thread; ended by {@link #end()}. */
+    static void begin(String name) {
+        Sink s = sink;
+        if (s != null) {
+            s.beginSection(name);
+        }
+    }
+
+    static void end() {
+        Sink s = sink;
+        if (s != null) {
+            s.endSection();
+        }
+    }
+
+    /**
+     * Begins a section on this thread named for the widget, if tracing is on.  Returns whether it
+     * began, to be passed to {@link #end(boolean)}.
+     */
+    static boolean begin(String name, int appWidgetId) {
+        Sink s = sink;
+        if (s == null || !s.isEnabled()) {
+            return false;
+        }
+        s.beginSection(name + " " + appWidgetId);
+        return true;
+    }
+
+    /** Ends a section begun by {@link #begin(String, int)}, if it began. */
+    static void end(boolean begun) {
+        Sink s = sink;
+        if (begun && s != null) {
+            s.endSection();
+        }
+    }
+
+    /**
+     * Begins an async section for the widget, if tracing is on.  Returns whether it began, so that it
+     * is only ended if it did.
+     */
+    static boolean beginAsync(String name, int appWidgetId) {
+        Sink s = sink;
+        if (s == null || !s.isEnabled()) {
+            return false;
+        }
+        s.beginAsyncSection(name + " " + appWidgetId, appWidgetId);
+        return true;
+    }
+
+    /** Ends the widget's async section of that name, if tracing is on. */
+    static void endAsync(String name, int appWidgetId) {
+        Sink s = sink;
+        if (s != null && s.isEnabled()) {
+            s.endAsyncSection(name + " " + appWidgetId, appWidgetId);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package tonycase.simpletimer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A single thread that drives every running countdown.  Tasks are kept in a queue ordered by the
+ * time they are next due, and all tasks that come due within the same tick are run together in one
+ * wakeup, so that N running widgets cost one thread rather than N.  Times are on the scheduler's
+ * {@link Clock}.
+ *
+ * Ticks are kept on a shared one second frame: a timer started while others are running has its start
+ * moved, by at most half a frame, onto their phase ({@link #alignToFrame(long)}), so that all the timers
+ * tick in the same wakeup.  A {@link FrameListener} hears when each wakeup begins and ends.  Each
+ * wakeup is a "frame" section in the system trace, see {@link SystemTrace}.
+ *
+ * The thread is started with {@link #start()}.  Without it, the scheduler can be driven by hand
+ * through {@link #runDue(long)} and {@link #nextDueTime()}, e.g. by benchmarks or the simulator.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 5/20/16.
+ */
+final class TickScheduler {
+
+    /** Return value of {@link Task#onTick(long)} meaning the task should not be called again. */
+    static final long DONE = -1;
+
+    // Tasks due within this many ms of each other are run in the same wakeup.
+    static final long TICK_WINDOW_MS = 10;
+
+    // The shared tick period that running timers are aligned to.
+    static final long FRAME_MS = 1000;
+
+    /** Something driven by the scheduler, e.g. the countdown for one widget. */
+    interface Task {
+        /**
+         * Called on the scheduler thread when the task is due.
+         *
+         * @param now  the current time, in ms, on the scheduler's clock.  A task run a little early, as
+         *             part of a batch, is given its due time instead.
+         * @return  the time at which to call this task again, or {@link #DONE}
+         */
+        long onTick(long now);
+    }
+
+    /** Told when the tasks due in one wakeup start and finish running, e.g. to batch their output. */
+    interface FrameListener {
+        void onFrameStart();
+        void onFrameEnd();
+    }
+
+    // Dropped entries left in the queue are swept out once they are this many, and half of it.
+    private static final int MIN_SWEEP = 64;
+
+    // The scheduling of one task, reused from tick to tick.  seq keeps tasks due at the same time in
+    // the order they were scheduled.
+    private static final class Entry implements Comparable<Entry> {
+        final Task task;
+        long dueAt;
+        long seq;
+        // whether the entry is in the queue, or being run in the current wakeup
+        boolean queued;
+        boolean running;
+        // rescheduled while being run
+        boolean rescheduled;
+        // no longer the task's: cancelled, or replaced by a new entry when rescheduled.  Left in the
+        // queue, if it's there, to be dropped when it reaches the head or the queue is swept.
+        boolean cancelled;
+
+        Entry(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (dueAt != other.dueAt) {
+                return dueAt < other.dueAt ? -1 : 1;
+            }
+            return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+        }
+    }
+
+    private final Clock clock;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+    // the cancelled entries still in the queue
+    private int dropped;
+    // the entry of every scheduled task, whether queued or running
+    private final Map<Task, Entry> entries = new IdentityHashMap<>();
+    // tasks due in the current wakeup; reused between wakeups.
+    private final List<Entry> due = new ArrayList<>();
+    private FrameListener frameListener;
+    // if set, records how late each task runs
+    private LatencyHistogram lateness;
+    // if set, hears of each wakeup while it records
+    private TraceRecorder traceRecorder;
+    // the time of some frame boundary; the phase all ticks are aligned to
+    private long frameAnchor;
+    private long nextSeq;
+    private boolean shutdown;
+    private Thread thread;
+
+    TickScheduler(Clock clock) {
+        this.clock = clock;
+    }
+
+    /** Returns the current time on the scheduler's clock, in ms. */
+    long now() {
+        return clock.now();
+    }
+
+    synchronized void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /** Has the scheduler record how late, in ms on its clock, each task runs after it was due. */
+    synchronized void setLatenessHistogram(LatencyHistogram lateness) {
+        this.lateness = lateness;
+    }
+
+    /** Has the scheduler record each wakeup, and how late it ran, to recorder while it records. */
+    synchronized void setTraceRecorder(TraceRecorder recorder) {
+        this.traceRecorder = recorder;
+    }
+
+    /** Starts the thread that runs tasks as they come due. */
+    synchronized void start() {
+        if (thread == null && !shutdown) {
+            thread = new Thread(new Runnable() {
+                @Override public void run() {
+                    loop();
+                }
+            }, "countdown-ticker");
+            thread.start();
+        }
+    }
+
+    /**
+     * Moves a start time to the nearest frame boundary of the timers already running, so that the new
+     * timer ticks with them.  With nothing running, the time is kept and becomes the new phase.
+     */
+    synchronized long alignToFrame(long time) {
+        if (entries.isEmpty()) {
+            frameAnchor = time;
+            return time;
+        }
+        long offset = (time - frameAnchor) % FRAME_MS;
+        if (offset < 0) {
+            offset += FRAME_MS;
+        }
+        return offset < FRAME_MS / 2 ? time - offset : time + (FRAME_MS - offset);
+    }
+
+    /**
+     * Schedules (or reschedules) the task to be run at the given time.  A task already queued is given
+     * a new entry, rather than being found and taken out of the queue, so that rescheduling every
+     * task, as when the widgets become visible, stays O(n log n).
+     */
+    synchronized void schedule(Task task, long dueAt) {
+        if (shutdown) {
+            return;
+        }
+        Entry entry = entries.get(task);
+        if (entry != null && entry.queued) {
+            drop(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            entry = new Entry(task);
+            entries.put(task, entry);
+        }
+        entry.dueAt = dueAt;
+        entry.seq = nextSeq++;
+        if (entry.running) {
+            // queued again once its current run finishes
+            entry.rescheduled = true;
+        } else {
+            entry.queued = true;
+            queue.add(entry);
+        }
+        notifyAll();
+    }
+
+    /** Removes the task, if scheduled.  A task currently being run may still complete its tick. */
+    synchronized void cancel(Task task) {
+        Entry entry = entries.remove(task);
+        if (entry != null) {
+            drop(entry);
+        }
+        notifyAll();
+    }
+
+    // Marks an entry as no longer its task's.  If it's queued it is left there, and skipped once it
+    // reaches the head; the queue is swept when dropped entries make up half of it.
+    private void drop(Entry entry) {
+        entry.cancelled = true;
+        if (!entry.queued) {
+            return;
+        }
+        dropped++;
+        if (dropped >= MIN_SWEEP && dropped * 2 >= queue.size()) {
+            List<Entry> live = new ArrayList<>(queue.size() - dropped);
+            for (Entry queued : queue) {
+                if (queued.cancelled) {
+                    queued.queued = false;
+                } else {
+                    live.add(queued);
+                }
+            }
+            queue.clear();
+            queue.addAll(live);
+            dropped = 0;
+        }
+    }
+
+    // The first entry in the queue still scheduled, or null; dropped entries ahead of it are removed.
+    private Entry head() {
+        Entry head = queue.peek();
+        while (head != null && head.cancelled) {
+            queue.poll();
+            head.queued = false;
+            dropped--;
+            head = queue.peek();
+        }
+        return head;
+    }
+
+    /** The number of tasks scheduled. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** When the next task is due, or {@link #DONE} if none are scheduled. */
+    synchronized long nextDueTime() {
+        Entry head = head();
+        return head == null ? DONE : head.dueAt;
+    }
+
+    /** Stops the scheduler thread and drops all tasks. */
+    synchronized void shutdown() {
+        shutdown = true;
+        queue.clear();
+        dropped = 0;
+        entries.clear();
+        notifyAll();
+    }
+
+    /**
+     * Runs every task due by now, plus any due within the same tick, as one frame.  Called on one
+     * thread at a time: the scheduler's own, or whoever is driving it by hand.
+     *
+     * @return  when the next task is due, or {@link #DONE} if none are scheduled
+     */
+    long runDue(long now) {
+        FrameListener listener;
+        LatencyHistogram lateness;
+        TraceRecorder recorder;
+        synchronized (this) {
+            Entry head;
+            while ((head = head()) != null && head.dueAt <= now + TICK_WINDOW_MS) {
+                Entry entry = queue.poll();
+                entry.queued = false;
+                entry.running = true;
+                due.add(entry);
+            }
+            listener = frameListener;
+            lateness = this.lateness;
+            recorder = traceRecorder;
+        }
+
+        SystemTrace.begin("frame");
+        if (recorder != null && recorder.isRecording() && !due.isEmpty()) {
+            recorder.record(TraceRecorder.FRAME, due.size(), now - due.get(0).dueAt);
+        } else {
+            recorder = null;
+        }
+        if (listener != null) {
+            listener.onFrameStart();
+        }
+        // run the tasks outside the lock, so they can schedule and cancel freely
+        for (int i = 0; i < due.size(); i++) {
+            Entry entry = due.get(i);
+            if (lateness != null) {
+                lateness.record(now - entry.dueAt);
+            }
+            long next = entry.task.onTick(Math.max(now, entry.dueAt));
+            synchronized (this) {
+                entry.running = false;
+                if (entry.cancelled || shutdown) {
+                    continue;
+                }
+                if (entry.rescheduled) {
+                    // scheduled again while running; that time wins
+                    entry.rescheduled = false;
+                } else if (next == DONE) {
+                    entries.remove(entry.task);
+                    continue;
+                } else {
+                    entry.dueAt = next;
+                    entry.seq = nextSeq++;
+                }
+                entry.queued = true;
+                queue.add(entry);
+            }
+        }
+        if (listener != null) {
+            listener.onFrameEnd();
+        }
+        if (recorder != null) {
+            recorder.record(TraceRecorder.FRAME_END, due.size(), 0);
+        }
+        SystemTrace.end();
+
+        synchronized (this) {
+            due.clear();
+            Entry head = head();
+            return head == null ? DONE : head.dueAt;
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (!shutdown) {
+                        Entry head = head();
+                        long now = now();
+                        if (head != null && head.dueAt <= now) {
+                            break;
+                        }
+                        // sleep until the earliest task is due, or until something is scheduled.
+                        wait(head == null ? 0 : head.dueAt - now);
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (shutdown) {
+                    thread = null;
+                    return;
+                }
+            }
+            runDue(now());
+        }
+    }
+}
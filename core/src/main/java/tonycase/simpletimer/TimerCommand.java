@@ -0,0 +1,121 @@
+package tonycase.simpletimer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request to start, stop or toggle one widget's timer, waiting to be run by the service.  Commands
+ * for a widget that arrive before the last one has run are merged with it by {@link #merge}, so that,
+ * e.g., a tap followed by a stop runs as just the stop.  Commands that can't be merged are chained, to
+ * be run in turn.
+ *
+ * A tap on a widget showing its label has its first frame drawn by the receiver, before the command
+ * is sent; the command says so, and when the tap was, so the countdown starts from the tap.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/8/16.
+ */
+final class TimerCommand {
+
+    /** Leaves the timer as it is. */
+    static final int NONE = 0;
+    /** Starts the timer, unless it's running. */
+    static final int START = 1;
+    /** Stops the timer, if it's running. */
+    static final int STOP = 2;
+    /**
+     * A tap: starts the timer if it's stopped, pauses it if it's running, resumes it if it's paused,
+     * or stops its alarm.
+     */
+    static final int TOGGLE = 3;
+
+    /** The time of a command that didn't come from a tap. */
+    static final long NOT_TAPPED = -1;
+
+    final int type;
+    final int appWidgetId;
+    // the length of timer to start, for START and TOGGLE
+    final int lengthSec;
+    // the service start id of the latest request merged in
+    final int startId;
+    // when the widget was tapped, on the scheduler's clock, or NOT_TAPPED
+    final long tappedAt;
+    // whether the receiver drew the first frame of the countdown when tapped
+    final boolean firstFrameShown;
+    // the command to run after this one, if the two couldn't be merged, or null
+    final TimerCommand then;
+
+    TimerCommand(int type, int appWidgetId, int lengthSec, int startId) {
+        this(type, appWidgetId, lengthSec, startId, NOT_TAPPED, false);
+    }
+
+    TimerCommand(int type, int appWidgetId, int lengthSec, int startId, long tappedAt,
+            boolean firstFrameShown) {
+        this(type, appWidgetId, lengthSec, startId, tappedAt, firstFrameShown, null);
+    }
+
+    private TimerCommand(int type, int appWidgetId, int lengthSec, int startId, long tappedAt,
+            boolean firstFrameShown, TimerCommand then) {
+        this.type = type;
+        this.appWidgetId = appWidgetId;
+        this.lengthSec = lengthSec;
+        this.startId = startId;
+        this.tappedAt = tappedAt;
+        this.firstFrameShown = firstFrameShown;
+        this.then = then;
+    }
+
+    /**
+     * The command with the same effect as running pending and then next, for the same widget.  Where a
+     * toggle may start, pause, resume or stop the timer depending on its state when run, few pairs
+     * reduce to one command:
+     *
+     * <ul>
+     * <li>a stop undoes whatever came before it, so anything followed by a stop is the stop;</li>
+     * <li>a start of a timer already started does nothing, so two starts are the first;</li>
+     * <li>two taps end where four do, from any state, so four taps in a row are the first two.</li>
+     * </ul>
+     *
+     * Anything else, e.g. two taps, which would start and pause an idle timer, or stop a ringing one
+     * and start it again, is chained.  Every command in the result carries next's start id.  A first
+     * frame shown by a command merged away is kept by the stop that replaced it, so the face can be
+     * put right if no timer is left running.
+     */
+    static TimerCommand merge(TimerCommand pending, TimerCommand next) {
+        List<TimerCommand> steps = new ArrayList<>();
+        boolean shown = next.firstFrameShown;
+        for (TimerCommand step = pending; step != null; step = step.then) {
+            if (step.type != NONE) {
+                steps.add(step);
+            }
+            shown |= step.firstFrameShown;
+        }
+        if (next.type == STOP) {
+            steps.clear();
+            steps.add(new TimerCommand(STOP, next.appWidgetId, next.lengthSec, next.startId,
+                    next.tappedAt, shown));
+        } else if (next.type != NONE) {
+            steps.add(next);
+        }
+
+        int n = steps.size();
+        if (n >= 2 && steps.get(n - 1).type == START && steps.get(n - 2).type == START) {
+            steps.remove(n - 1);
+        } else if (n >= 4 && steps.get(n - 1).type == TOGGLE && steps.get(n - 2).type == TOGGLE
+                && steps.get(n - 3).type == TOGGLE && steps.get(n - 4).type == TOGGLE) {
+            steps.remove(n - 1);
+            steps.remove(n - 2);
+        }
+
+        if (steps.isEmpty()) {
+            return new TimerCommand(NONE, next.appWidgetId, 0, next.startId, NOT_TAPPED, shown);
+        }
+        TimerCommand merged = null;
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            TimerCommand step = steps.get(i);
+            merged = new TimerCommand(step.type, step.appWidgetId, step.lengthSec, next.startId,
+                    step.tappedAt, step.firstFrameShown, merged);
+        }
+        return merged;
+    }
+}
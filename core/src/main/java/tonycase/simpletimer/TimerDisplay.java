@@ -0,0 +1,29 @@
+package tonycase.simpletimer;
+
+/**
+ * Where the faces of the widgets are drawn.  In the app this is WidgetRenderer, which pushes them to
+ * the home screen; the simulator counts them.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+interface TimerDisplay {
+
+    /** Shows the static label for a timer of the given duration, which starts the timer when tapped. */
+    void showLabel(int appWidgetId, int duration);
+
+    /** Shows the running countdown as text. */
+    void showCountdown(int appWidgetId, CharSequence formattedDuration);
+
+    /** Shows a countdown to the given deadline, ticked by the launcher. */
+    void showChronometer(int appWidgetId, long deadline);
+
+    /** Shows a timer's alarm, which stops the timer when tapped. */
+    void showAlarm(int appWidgetId, int duration);
+
+    /** Shows a paused timer, frozen at the seconds it had left, with a reset button. */
+    void showPaused(int appWidgetId, int secondsRemaining, int duration);
+
+    /** Forgets what was shown in the widget, so the next face is drawn in full. */
+    void forget(int appWidgetId);
+}
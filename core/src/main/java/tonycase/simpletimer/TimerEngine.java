@@ -0,0 +1,542 @@
+package tonycase.simpletimer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The timers of all the widgets, and everything they do: counting down on the shared
+ * {@link TickScheduler}, drawing their faces, holding wake locks, sounding the alarm at zero, and
+ * pausing, resuming and stopping on command.  Nothing here depends on Android; the widgets, wake
+ * locks, sound and the rest of the device are reached through a {@link TimerDisplay},
+ * {@link WakeLocks}, {@link AlarmSound} and {@link Host}.  In the app the engine is driven by
+ * CountdownService; off the device, by a simulator on virtual time.
+ *
+ * Commands, restores, expiries and changes of visibility are run on one thread at a time, the
+ * service's command thread; ticks run on the scheduler's.  Each timer's state is kept in a
+ * {@link TimerRegistry}, so a timer is only moved on by whichever thread wins the compare-and-set.
+ *
+ * Each timer is an async section "timer <id>" in the system trace from when it starts or resumes to
+ * when it stops, pauses or its alarm is over, and each of its ticks a section "tick <id>"; see
+ * {@link SystemTrace}.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+final class TimerEngine {
+
+    /** The rest of the device, as the timers need it. */
+    interface Host {
+        /** Whether the widget keeps the screen on while counting down, rather than being woken at zero. */
+        boolean keepsScreenOn(int appWidgetId);
+
+        /** The widget's configured duration, in seconds. */
+        int getDuration(int appWidgetId);
+
+        /** The ms left on the widget's paused timer, as saved, or {@link WidgetConfigStore#NOT_PAUSED}. */
+        long getPausedRemaining(int appWidgetId);
+
+        /** Saves the ms left on the widget's paused timer, or {@link WidgetConfigStore#NOT_PAUSED}. */
+        void setPausedRemaining(int appWidgetId, long remainingMs);
+
+        /** Whether the display is on. */
+        boolean isScreenOn();
+
+        /**
+         * Sets an alarm that wakes the device at the deadline, and comes back as
+         * {@link TimerEngine#expire(int)}.
+         */
+        void setExpiryAlarm(int appWidgetId, long deadline);
+
+        void cancelExpiryAlarm(int appWidgetId);
+
+        /** Gets the "time is up" notification ready, so it can be shown at zero at no cost. */
+        void prepareNotification(int appWidgetId);
+
+        void showNotification(int appWidgetId);
+
+        void cancelNotification(int appWidgetId);
+
+        /** The widget's timer is running, to the countdown's deadline; e.g. to journal it. */
+        void timerStarted(int appWidgetId, Countdown countdown);
+
+        /** The widget's timer is no longer running: stopped, paused or finished. */
+        void timerStopped(int appWidgetId);
+
+        /** The widget's alarm is over.  Called on the scheduler thread. */
+        void timerFinished(int appWidgetId);
+    }
+
+    private final TickScheduler scheduler;
+    private final TimerDisplay display;
+    private final WakeLocks wakeLocks;
+    private final AlarmSound sound;
+    private final Host host;
+
+    // A countdown for each widget, and the state it's in
+    private final TimerRegistry<Timer> timers = new TimerRegistry<>();
+
+    // Whether the countdown is drawn by a chronometer the launcher ticks, rather than as text
+    private final boolean useChronometer;
+
+    // Whether the home screen, and so the widgets, can be seen; nothing is drawn while it can't.
+    private volatile boolean widgetsVisible = true;
+
+    TimerEngine(TickScheduler scheduler, TimerDisplay display, WakeLocks wakeLocks, AlarmSound sound,
+            Host host, boolean useChronometer) {
+        this.scheduler = scheduler;
+        this.display = display;
+        this.wakeLocks = wakeLocks;
+        this.sound = sound;
+        this.host = host;
+        this.useChronometer = useChronometer;
+    }
+
+    /** The number of timers running or ringing; paused ones need nothing. */
+    int size() {
+        return timers.size();
+    }
+
+    /** The widget's state, as kept in the {@link TimerRegistry}. */
+    int getState(int appWidgetId) {
+        return timers.getState(appWidgetId);
+    }
+
+    /**
+     * Runs a start, stop or toggle, and any commands chained after it.  A toggle starts an idle timer,
+     * pauses a running one, resumes a paused one and stops a ringing one.
+     */
+    void run(TimerCommand command) {
+        boolean firstFrameShown = false;
+        for (TimerCommand step = command; step != null; step = step.then) {
+            runStep(step);
+            firstFrameShown |= step.firstFrameShown;
+        }
+
+        int appWidgetId = command.appWidgetId;
+        if (firstFrameShown && timers.getState(appWidgetId) == TimerRegistry.IDLE) {
+            // the receiver drew a countdown that isn't running after all, e.g. after a tap and a stop
+            display.showLabel(appWidgetId, host.getDuration(appWidgetId));
+        }
+    }
+
+    private void runStep(TimerCommand command) {
+        int appWidgetId = command.appWidgetId;
+        EventLog.INSTANCE.record(EventLog.COMMAND, appWidgetId, command.type);
+        int state = timers.getState(appWidgetId);
+        long pausedMs = host.getPausedRemaining(appWidgetId);
+        if (state == TimerRegistry.IDLE && pausedMs != WidgetConfigStore.NOT_PAUSED) {
+            // paused before the process was last killed
+            state = TimerRegistry.PAUSED;
+        }
+
+        if (command.type == TimerCommand.STOP
+                || (command.type == TimerCommand.TOGGLE && state == TimerRegistry.RINGING)) {
+            stopTimer(appWidgetId, pausedMs);
+        } else if (command.type == TimerCommand.START || command.type == TimerCommand.TOGGLE) {
+            if (state == TimerRegistry.IDLE) {
+                startTimer(appWidgetId, command);
+            } else if (state == TimerRegistry.PAUSED) {
+                resumeTimer(appWidgetId, pausedMs);
+            } else if (state == TimerRegistry.RUNNING && command.type == TimerCommand.TOGGLE) {
+                pauseTimer(appWidgetId);
+            }
+        }
+    }
+
+    /**
+     * Brings back the timers that were running when the process last died, from their journaled
+     * deadlines.  Those that finished in the meantime are reset.
+     */
+    void restore(List<TimerJournal.Entry> entries) {
+        long now = scheduler.now();
+        for (TimerJournal.Entry entry : entries) {
+            Countdown countdown = Countdown.endingAt(entry.deadline, entry.durationSec);
+            if (countdown.isAlarmOver(now)) {
+                // finished while we were gone
+                host.timerStopped(entry.appWidgetId);
+                display.showLabel(entry.appWidgetId, entry.durationSec);
+            } else {
+                EventLog.INSTANCE.record(EventLog.RESTORE, entry.appWidgetId, entry.deadline);
+                startTimer(entry.appWidgetId, countdown, TimerCommand.NOT_TAPPED);
+            }
+        }
+    }
+
+    /** The expiry alarm for the widget's countdown went off. */
+    void expire(int appWidgetId) {
+        Timer timer = timers.getTimer(appWidgetId);
+        if (timer != null) {
+            timer.expire();
+        }
+    }
+
+    /** Draws every timer again in full, e.g. after the launcher restarted. */
+    void redraw() {
+        for (Timer timer : allTimers()) {
+            timer.redraw();
+        }
+    }
+
+    /**
+     * Opens or closes the gate on drawing.  Once the widgets can be seen again, every running timer is
+     * brought up to date, all on the same tick, so their updates go out together.
+     */
+    void setWidgetsVisible(boolean visible) {
+        if (widgetsVisible == visible) {
+            return;
+        }
+        widgetsVisible = visible;
+        EventLog.INSTANCE.record(EventLog.WIDGETS_VISIBLE, 0, visible ? 1 : 0);
+        if (visible) {
+            long now = scheduler.now();
+            for (Timer timer : allTimers()) {
+                timer.refresh(now);
+            }
+        }
+    }
+
+    // Starts the widget's timer afresh: from the tap, if the receiver drew its first frame then, or
+    // otherwise from now.
+    private void startTimer(int appWidgetId, TimerCommand command) {
+        int lengthSec = command.lengthSec;
+        // Don't do anything if the length is 0 seconds.
+        if (lengthSec > 0) {
+            boolean shown = command.firstFrameShown && command.tappedAt != TimerCommand.NOT_TAPPED;
+            long start = shown ? command.tappedAt : scheduler.now();
+            if (!shown || !useChronometer) {
+                // started on the same frame as any other running timers, so they all tick together.
+                // The first frame reads the same either way; only a chronometer, already handed its
+                // deadline, has to keep it.
+                start = scheduler.alignToFrame(start);
+            }
+            Countdown countdown = new Countdown(start, lengthSec);
+            if (startTimer(appWidgetId, countdown, shown ? TimerCommand.NOT_TAPPED : command.tappedAt)) {
+                host.timerStarted(appWidgetId, countdown);
+                EventLog.INSTANCE.record(EventLog.START, appWidgetId, countdown.getDeadline());
+            }
+        }
+    }
+
+    // creates and starts the countdown for a widget, unless it already has one, timing its first
+    // frame from tappedAt unless NOT_TAPPED.  Returns whether it did.
+    private boolean startTimer(int appWidgetId, Countdown countdown, long tappedAt) {
+        Timer timer = newTimer(appWidgetId, countdown);
+        timer.tappedAt = tappedAt;
+        if (!timers.start(appWidgetId, timer)) {
+            return false;
+        }
+        launch(timer);
+        return true;
+    }
+
+    // Stops the widget's timer, whether running, ringing or paused, unless its alarm finished first.
+    private void stopTimer(int appWidgetId, long pausedMs) {
+        Timer current = timers.getTimer(appWidgetId);
+        // as shown, before it's reset
+        int secondsRemaining = current != null ? current.secondsRemaining(scheduler.now()) : 0;
+        Timer timer = timers.stop(appWidgetId);
+        if (pausedMs != WidgetConfigStore.NOT_PAUSED) {
+            host.setPausedRemaining(appWidgetId, WidgetConfigStore.NOT_PAUSED);
+        }
+        if (timer != null) {
+            EventLog.INSTANCE.record(EventLog.STOP, appWidgetId, secondsRemaining);
+            timer.stop();
+            host.timerStopped(appWidgetId);
+        } else if (pausedMs != WidgetConfigStore.NOT_PAUSED) {
+            // paused in an earlier process; only the face to reset
+            EventLog.INSTANCE.record(EventLog.STOP, appWidgetId, Countdown.toDisplaySeconds(pausedMs));
+            display.showLabel(appWidgetId, host.getDuration(appWidgetId));
+        }
+    }
+
+    // Parks the widget's running timer, unless it reached zero first.
+    private void pauseTimer(int appWidgetId) {
+        Timer timer = timers.getTimer(appWidgetId);
+        if (timer != null
+                && timers.moveTo(appWidgetId, timer, TimerRegistry.RUNNING, TimerRegistry.PAUSED)) {
+            timer.pause();
+            host.timerStopped(appWidgetId);
+        }
+    }
+
+    // Runs the widget's paused timer again, to a deadline the time it had left from now.
+    private void resumeTimer(int appWidgetId, long pausedMs) {
+        Timer paused = timers.getTimer(appWidgetId);
+        long remainingMs = paused != null ? paused.pausedRemainingMs : pausedMs;
+        int duration = paused != null ? paused.resetTime : host.getDuration(appWidgetId);
+        Countdown countdown = Countdown.endingAt(scheduler.now() + remainingMs, duration);
+
+        Timer timer = newTimer(appWidgetId, countdown);
+        boolean resumed = paused != null
+                ? timers.resume(appWidgetId, paused, timer) : timers.start(appWidgetId, timer);
+        if (resumed) {
+            host.setPausedRemaining(appWidgetId, WidgetConfigStore.NOT_PAUSED);
+            launch(timer);
+            host.timerStarted(appWidgetId, countdown);
+            EventLog.INSTANCE.record(EventLog.RESUME, appWidgetId, countdown.getDeadline());
+        }
+    }
+
+    private Timer newTimer(int appWidgetId, Countdown countdown) {
+        return new Timer(appWidgetId, countdown, !host.keepsScreenOn(appWidgetId));
+    }
+
+    // starts a countdown just placed in the registry
+    private void launch(Timer timer) {
+        // built now, so that at zero there is nothing to do but show it
+        host.prepareNotification(timer.widgetId);
+        timer.start();
+
+        if (!timer.useAlarm) {
+            // held at most until the alarm is over, should the timer never be stopped
+            wakeLocks.acquire(WakeLocks.SCREEN, timer.widgetId, timer.alarmOverAt());
+        }
+    }
+
+    // the timers of all widgets not idle, as of now
+    private List<Timer> allTimers() {
+        List<Timer> list = new ArrayList<>();
+        timers.collectTimers(list);
+        return list;
+    }
+
+    // The countdown for one widget, ticked by the shared scheduler.
+    private final class Timer implements TickScheduler.Task {
+
+        // the widget id this countdown is working for
+        private final int widgetId;
+
+        // the duration of the timer (reset to this value upon completion or reset)
+        private final int resetTime;
+
+        // the deadline of the countdown; time remaining is always worked out from this.
+        private final Countdown countdown;
+
+        // whether zero is signalled by an expiry alarm, rather than a held wake lock
+        private final boolean useAlarm;
+
+        // the time left when paused, once the timer is
+        private long pausedRemainingMs;
+
+        // whether the chronometer has been handed the deadline, and whether the alarm face is up
+        private boolean chronometerShown = false;
+        private boolean alarmShown = false;
+
+        // the alarm sounding once the time gets to 0
+        private int alarm = AlarmSound.NO_ALARM;
+
+        // when the tap that started it was, until its first frame is drawn, or NOT_TAPPED
+        private long tappedAt = TimerCommand.NOT_TAPPED;
+
+        // whether its async section in the system trace is open
+        private boolean traced;
+
+        Timer(int widgetId, Countdown countdown, boolean useAlarm) {
+            this.widgetId = widgetId;
+            this.resetTime = countdown.getDurationSec();
+            this.useAlarm = useAlarm;
+            this.countdown = countdown;
+        }
+
+        // hands this countdown to the scheduler; the first tick displays the starting value.
+        void start() {
+            synchronized (this) {
+                traced = SystemTrace.beginAsync("timer", widgetId);
+            }
+            scheduler.schedule(this, scheduler.now());
+            if (useAlarm) {
+                host.setExpiryAlarm(widgetId, countdown.getDeadline());
+            }
+        }
+
+        // draws the countdown again in full, e.g. after the launcher restarted.
+        synchronized void redraw() {
+            display.forget(widgetId);
+            if (isPaused()) {
+                display.showPaused(widgetId, Countdown.toDisplaySeconds(pausedRemainingMs), resetTime);
+                return;
+            }
+            chronometerShown = false;
+            alarmShown = false;
+            scheduler.schedule(this, scheduler.now());
+        }
+
+        // brings the widget up to date at now, after the widgets were hidden; only what changed is sent.
+        synchronized void refresh(long now) {
+            if (!isPaused()) {
+                scheduler.schedule(this, now);
+            }
+        }
+
+        // Parks the countdown, once paused in the registry: keeps the time left and lets go of its
+        // tick, alarm and wake locks.  The face is frozen at the time left.
+        synchronized void pause() {
+            pausedRemainingMs = countdown.millisRemaining(scheduler.now());
+            scheduler.cancel(this);
+            if (useAlarm) {
+                host.cancelExpiryAlarm(widgetId);
+            }
+            wakeLocks.releaseAll(widgetId);
+            host.setPausedRemaining(widgetId, pausedRemainingMs);
+            display.showPaused(widgetId, Countdown.toDisplaySeconds(pausedRemainingMs), resetTime);
+            EventLog.INSTANCE.record(EventLog.PAUSE, widgetId, pausedRemainingMs);
+            endTrace();
+        }
+
+        private boolean isPaused() {
+            return timers.getTimer(widgetId) == this
+                    && timers.getState(widgetId) == TimerRegistry.PAUSED;
+        }
+
+        // the seconds left, as displayed, or frozen if paused
+        int secondsRemaining(long now) {
+            return isPaused() ? Countdown.toDisplaySeconds(pausedRemainingMs)
+                    : countdown.secondsRemaining(now);
+        }
+
+        // when the alarm will be over, plus a second's grace; no wake lock for this timer is held
+        // past it.
+        long alarmOverAt() {
+            return countdown.getDeadline() + Countdown.ALARM_DURATION_MS + Countdown.ONE_SECOND;
+        }
+
+        // Runs under the lock, so that a pause can't be drawn over by a tick already under way.
+        @Override
+        public synchronized long onTick(long now) {
+            boolean section = SystemTrace.begin("tick", widgetId);
+            try {
+                return tick(now);
+            } finally {
+                SystemTrace.end(section);
+            }
+        }
+
+        private long tick(long now) {
+            if (timers.getTimer(widgetId) != this || isPaused()) {
+                // stopped or paused
+                return TickScheduler.DONE;
+            }
+
+            if (!countdown.isExpired(now)) {
+                int secondsRemaining = countdown.secondsRemaining(now);
+                if (secondsRemaining % 10 == 0) {
+                    EventLog.INSTANCE.record(EventLog.TICK, widgetId, secondsRemaining);
+                }
+                if (!widgetsVisible) {
+                    // nobody can see it; sleep until zero, or until the widgets are visible again
+                    return countdown.getDeadline();
+                }
+                if (useChronometer) {
+                    // the launcher does the counting; nothing more to do until zero
+                    if (!chronometerShown) {
+                        chronometerShown = true;
+                        display.showChronometer(widgetId, countdown.getDeadline());
+                        firstFrameDrawn(now);
+                    }
+                    return countdown.getDeadline();
+                }
+                // formatted time remaining; M:SS, or H:MM:SS for an hour or more.  Only what
+                // changed is sent.
+                display.showCountdown(widgetId, DurationFormatter.format(secondsRemaining));
+                firstFrameDrawn(now);
+                // sleep until the displayed value next changes
+                return countdown.nextTick(now);
+            }
+
+            soundAlarm();
+            if (!countdown.isAlarmOver(now)) {    // plays alarm for 15 seconds, unless stopped
+                // the launcher blinks the alarm face; nothing more to do until the alarm is over
+                if (!alarmShown && widgetsVisible) {
+                    alarmShown = true;
+                    display.showAlarm(widgetId, resetTime);
+                }
+                return countdown.nextTick(now);
+            }
+
+            if (!timers.moveTo(widgetId, this, TimerRegistry.RINGING, TimerRegistry.IDLE)) {
+                // stopped meanwhile, which did all of the below
+                return TickScheduler.DONE;
+            }
+            EventLog.INSTANCE.record(EventLog.ALARM_OVER, widgetId, 0);
+            stopAlarm();
+            wakeLocks.releaseAll(widgetId);
+            host.cancelNotification(widgetId);
+            host.timerStopped(widgetId);
+
+            display.showLabel(widgetId, resetTime);
+            host.timerFinished(widgetId);
+            endTrace();
+            return TickScheduler.DONE;
+        }
+
+        // Called when the expiry alarm goes off.  The ticker may have slept through the deadline, so
+        // sound the alarm here and have the alarm face shown now.
+        void expire() {
+            if (soundAlarm()) {
+                scheduler.schedule(this, scheduler.now());
+            }
+        }
+
+        // Sounds the alarm, once, whether reached from a tick at zero or from the expiry alarm.
+        // Returns whether this call sounded it.  Runs under the lock, so that a stop, made once the
+        // timer is out of the registry, finds everything started here to undo.
+        private synchronized boolean soundAlarm() {
+            if (!timers.moveTo(widgetId, this, TimerRegistry.RUNNING, TimerRegistry.RINGING)) {
+                return false;
+            }
+            if (useAlarm) {
+                // hold the cpu only for as long as the alarm sounds
+                wakeLocks.acquire(WakeLocks.CPU, widgetId, alarmOverAt());
+            }
+            boolean section = SystemTrace.begin("sound alarm", widgetId);
+            alarm = sound.play();
+            SystemTrace.end(section);
+            long late = scheduler.now() - countdown.getDeadline();
+            TimerMetrics.INSTANCE.alarmStartLatency.record(late);
+            EventLog.INSTANCE.record(EventLog.ALARM, widgetId, late);
+
+            // if screen is off, turn it on.
+            if (!host.isScreenOn()) {
+                // turns the screen on, and keeps it on while the alarm sounds.  We send a notification
+                // too; the user can then silence the alarm by tapping it.
+                wakeLocks.acquire(WakeLocks.WAKE_SCREEN, widgetId, alarmOverAt());
+                host.showNotification(widgetId);
+            }
+            return true;
+        }
+
+        // Undoes everything the countdown started; called once it has been stopped in the registry.
+        void stop() {
+            display.showLabel(widgetId, resetTime);
+            stopAlarm();
+            scheduler.cancel(this);
+            if (useAlarm) {
+                host.cancelExpiryAlarm(widgetId);
+            }
+            wakeLocks.releaseAll(widgetId);
+            host.cancelNotification(widgetId);
+            endTrace();
+        }
+
+        private synchronized void stopAlarm() {
+            sound.stop(alarm);
+            alarm = AlarmSound.NO_ALARM;
+        }
+
+        // ends its async section in the system trace, if open
+        private synchronized void endTrace() {
+            if (traced) {
+                traced = false;
+                SystemTrace.endAsync("timer", widgetId);
+            }
+        }
+
+        // times the first frame after the tap that started the countdown, if it came from one
+        private void firstFrameDrawn(long now) {
+            if (tappedAt != TimerCommand.NOT_TAPPED) {
+                TimerMetrics.INSTANCE.tapToFirstFrame.record(now - tappedAt);
+                tappedAt = TimerCommand.NOT_TAPPED;
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package tonycase.simpletimer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only record of which timers are running, so that they can be picked up again if the
+ * process is killed.  Each start is written with its deadline on the monotonic clock, and each stop
+ * with just the widget id; nothing is written per tick.  {@link #restore()} reads the file once and
+ * returns the timers still running.
+ *
+ * Deadlines on the monotonic clock only mean something until the device reboots, so the file begins
+ * with the boot time it was written in, and a journal from an earlier boot is discarded.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/2/16.
+ */
+final class TimerJournal {
+
+    /** A running timer, as recorded. */
+    static final class Entry {
+        final int appWidgetId;
+        final int durationSec;
+        final long deadline;
+
+        Entry(int appWidgetId, int durationSec, long deadline) {
+            this.appWidgetId = appWidgetId;
+            this.durationSec = durationSec;
+            this.deadline = deadline;
+        }
+    }
+
+    // file layout: MAGIC, VERSION, boot time, then records
+    private static final int MAGIC = 0x53544a4c;   // "STJL"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8;
+
+    // records: START id duration deadline, STOP id
+    private static final byte START = 1;
+    private static final byte STOP = 2;
+
+    // boot times further apart than this are different boots
+    private static final long BOOT_TOLERANCE_MS = 10 * 1000;
+
+    // rewrite the file with only the running timers after this many records
+    private static final int COMPACT_AFTER = 64;
+
+    private final File file;
+    private final long bootTime;
+
+    // the running timers, as the file describes them
+    private final Map<Integer, Entry> active = new LinkedHashMap<>();
+    private DataOutputStream out;
+    private int records;
+    // whether the file on disk is known to be ours to append to
+    private boolean opened;
+
+    /**
+     * @param file  where the journal is kept
+     * @param bootTime  when the device booted, in wall clock ms (the wall clock less the monotonic
+     *                  clock).  It only needs to be accurate to a few seconds.
+     */
+    TimerJournal(File file, long bootTime) {
+        this.file = file;
+        this.bootTime = bootTime;
+    }
+
+    /** Whether the journal at file has any timers in it, without reading it. */
+    static boolean hasRecords(File file) {
+        return file.length() > HEADER_SIZE;
+    }
+
+    /**
+     * Reads the journal and returns the timers that were running when it was last written.  Journals
+     * from an earlier boot are discarded.  The journal is then rewritten with only those timers.
+     */
+    synchronized List<Entry> restore() throws IOException {
+        active.clear();
+        readActive(file, bootTime, active);
+        rewrite();
+        return new ArrayList<>(active.values());
+    }
+
+    /**
+     * Reads the timers in the journal at file, as {@link #restore()} does, but leaves the file as it
+     * is, e.g. for another part of the app to see which widgets are running while the journal is
+     * being written.
+     */
+    static List<Entry> read(File file, long bootTime) throws IOException {
+        Map<Integer, Entry> active = new LinkedHashMap<>();
+        readActive(file, bootTime, active);
+        return new ArrayList<>(active.values());
+    }
+
+    // reads the journal at file into active, the running timers by widget id
+    private static void readActive(File file, long bootTime, Map<Integer, Entry> active)
+            throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() == MAGIC && in.readInt() == VERSION
+                    && Math.abs(in.readLong() - bootTime) < BOOT_TOLERANCE_MS) {
+                readRecords(in, active);
+            }
+        } catch (FileNotFoundException e) {
+            // nothing was running
+        } catch (EOFException e) {
+            // a record cut short as the process died, or still being written; everything before it
+            // stands
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void readRecords(DataInputStream in, Map<Integer, Entry> active) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            int appWidgetId = in.readInt();
+            if (type == START) {
+                int durationSec = in.readInt();
+                long deadline = in.readLong();
+                active.put(appWidgetId, new Entry(appWidgetId, durationSec, deadline));
+            } else if (type == STOP) {
+                active.remove(appWidgetId);
+            } else {
+                // garbage from a write cut short; everything before it stands
+                return;
+            }
+        }
+    }
+
+    /** Records that the widget's timer started, reaching zero at deadline. */
+    synchronized void recordStart(int appWidgetId, int durationSec, long deadline) throws IOException {
+        active.put(appWidgetId, new Entry(appWidgetId, durationSec, deadline));
+        DataOutputStream o = output();
+        o.writeByte(START);
+        o.writeInt(appWidgetId);
+        o.writeInt(durationSec);
+        o.writeLong(deadline);
+        o.flush();
+        records++;
+        compactIfNeeded();
+    }
+
+    /** Records that the widget's timer stopped, by the user or by finishing. */
+    synchronized void recordStop(int appWidgetId) throws IOException {
+        if (active.remove(appWidgetId) == null) {
+            return;
+        }
+        if (active.isEmpty()) {
+            // nothing running; start again from an empty journal
+            rewrite();
+            return;
+        }
+        DataOutputStream o = output();
+        o.writeByte(STOP);
+        o.writeInt(appWidgetId);
+        o.flush();
+        records++;
+        compactIfNeeded();
+    }
+
+    synchronized void close() {
+        closeQuietly(out);
+        out = null;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (records >= COMPACT_AFTER) {
+            rewrite();
+        }
+    }
+
+    // writes a fresh journal holding just the active timers, and appends to it from then on
+    private void rewrite() throws IOException {
+        close();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            o.writeInt(MAGIC);
+            o.writeInt(VERSION);
+            o.writeLong(bootTime);
+            for (Entry entry : active.values()) {
+                o.writeByte(START);
+                o.writeInt(entry.appWidgetId);
+                o.writeInt(entry.durationSec);
+                o.writeLong(entry.deadline);
+            }
+        } finally {
+            o.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not replace " + file);
+        }
+        records = active.size();
+        opened = true;
+    }
+
+    private DataOutputStream output() throws IOException {
+        if (out == null) {
+            if (!opened) {
+                // never restored: whatever is on disk is stale
+                rewrite();
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        return out;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
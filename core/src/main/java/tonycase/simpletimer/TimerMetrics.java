@@ -0,0 +1,108 @@
+package tonycase.simpletimer;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Measurements of how the countdowns are running, for profiling on real devices: how late ticks run,
+ * how long widget faces take to build and push, how long the AppWidgetManager calls block and how
+ * long a tapped widget takes to show its countdown, along with counts of updates per widget, wake
+ * lock holding and how late alarms start.  They are printed
+ * by {@code adb shell dumpsys activity service tonycase.simpletimer/.CountdownService}, which takes
+ * an optional "reset" argument to start again.
+ *
+ * Recording allocates nothing, save when a widget is updated for the first time.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/6/16.
+ */
+final class TimerMetrics {
+
+    static final TimerMetrics INSTANCE = new TimerMetrics();
+
+    // ranges kept to full precision: a minute in ms, ten seconds in microseconds
+    private static final long MAX_MS = 60 * 1000;
+    private static final long MAX_MICROS = 10 * 1000 * 1000;
+
+    /** How long after it was due each tick ran, in ms. */
+    final LatencyHistogram tickLateness = new LatencyHistogram(MAX_MS);
+
+    /** Time to build and push one widget face, in microseconds. */
+    final LatencyHistogram renderTime = new LatencyHistogram(MAX_MICROS);
+
+    /** Time blocked in one AppWidgetManager update call, in microseconds. */
+    final LatencyHistogram updateTime = new LatencyHistogram(MAX_MICROS);
+
+    /** How long after the deadline each alarm started sounding, in ms. */
+    final LatencyHistogram alarmStartLatency = new LatencyHistogram(MAX_MS);
+
+    /** How long after a tap on a widget the first frame of its countdown was pushed, in ms. */
+    final LatencyHistogram tapToFirstFrame = new LatencyHistogram(MAX_MS);
+
+    // wake locks released, and how long they were held in all
+    private long wakeLocksReleased;
+    private long wakeLockHeldMs;
+
+    // updates sent to each widget, sorted by id
+    private int[] widgetIds = new int[0];
+    private long[] widgetUpdates = new long[0];
+
+    private TimerMetrics() {
+    }
+
+    /** Counts an update sent to the first count widgets in ids. */
+    synchronized void countUpdates(int[] ids, int count) {
+        for (int i = 0; i < count; i++) {
+            int index = Arrays.binarySearch(widgetIds, ids[i]);
+            if (index < 0) {
+                index = -index - 1;
+                insertWidget(index, ids[i]);
+            }
+            widgetUpdates[index]++;
+        }
+    }
+
+    /** Counts a wake lock released after being held for heldMs. */
+    synchronized void wakeLockReleased(long heldMs) {
+        wakeLocksReleased++;
+        wakeLockHeldMs += heldMs;
+    }
+
+    synchronized void reset() {
+        tickLateness.reset();
+        renderTime.reset();
+        updateTime.reset();
+        alarmStartLatency.reset();
+        tapToFirstFrame.reset();
+        wakeLocksReleased = 0;
+        wakeLockHeldMs = 0;
+        widgetIds = new int[0];
+        widgetUpdates = new long[0];
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        tickLateness.print(pw, "tick lateness", "ms");
+        renderTime.print(pw, "render time", "us");
+        updateTime.print(pw, "update call time", "us");
+        alarmStartLatency.print(pw, "alarm start latency", "ms");
+        tapToFirstFrame.print(pw, "tap to first frame", "ms");
+        pw.printf("wake locks: released=%d held=%dms%n", wakeLocksReleased, wakeLockHeldMs);
+        pw.println("updates per widget:");
+        for (int i = 0; i < widgetIds.length; i++) {
+            pw.printf("  %d: %d%n", widgetIds[i], widgetUpdates[i]);
+        }
+    }
+
+    private void insertWidget(int index, int appWidgetId) {
+        int count = widgetIds.length + 1;
+        int[] ids = new int[count];
+        long[] updates = new long[count];
+        System.arraycopy(widgetIds, 0, ids, 0, index);
+        System.arraycopy(widgetIds, index, ids, index + 1, count - index - 1);
+        System.arraycopy(widgetUpdates, 0, updates, 0, index);
+        System.arraycopy(widgetUpdates, index, updates, index + 1, count - index - 1);
+        ids[index] = appWidgetId;
+        widgetIds = ids;
+        widgetUpdates = updates;
+    }
+}
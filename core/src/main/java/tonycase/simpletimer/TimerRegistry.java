@@ -0,0 +1,221 @@
+package tonycase.simpletimer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The timer of every widget, and the state it is in, safe to read and change from any thread.  Each
+ * widget's timer moves through the states
+ *
+ * <pre>
+ *   IDLE -> RUNNING -> RINGING -> IDLE
+ *              |  ^
+ *              v  |
+ *             PAUSED -> IDLE
+ * </pre>
+ *
+ * and is stopped, back to IDLE, from any of them.  Each move is a compare-and-set on the widget's
+ * state and timer together, so of two threads racing to move the same timer, e.g. the ticker reaching
+ * zero and the expiry alarm, exactly one wins, and a thread holding a timer that has since been
+ * stopped can't move the widget's new one.
+ *
+ * Widgets are looked up by a binary search over a table of primitive ids, with no locking; the table
+ * only changes, copied, the first time a widget is used.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/13/16.
+ */
+final class TimerRegistry<T> {
+
+    /** No timer. */
+    static final int IDLE = 0;
+    /** Counting down. */
+    static final int RUNNING = 1;
+    /** At zero, with the alarm sounding. */
+    static final int RINGING = 2;
+    /** Stopped part way, to be resumed. */
+    static final int PAUSED = 3;
+
+    // a widget's state, and its timer unless IDLE.  Never modified; a move swaps in a new one.
+    private static final class State<T> {
+        final int state;
+        final T timer;
+
+        State(int state, T timer) {
+            this.state = state;
+            this.timer = timer;
+        }
+    }
+
+    private static final State<?> IDLE_STATE = new State<>(IDLE, null);
+
+    // the slots of all the widgets used, by id, sorted.  Never modified once published.
+    private static final class Table {
+        final int[] ids;
+        final AtomicReference<?>[] slots;
+
+        Table(int[] ids, AtomicReference<?>[] slots) {
+            this.ids = ids;
+            this.slots = slots;
+        }
+    }
+
+    private volatile Table table = new Table(new int[0], new AtomicReference<?>[0]);
+
+    // the number of widgets RUNNING or RINGING
+    private final AtomicInteger active = new AtomicInteger();
+
+    /** The widget's state: {@link #IDLE}, {@link #RUNNING}, {@link #RINGING} or {@link #PAUSED}. */
+    int getState(int appWidgetId) {
+        return get(appWidgetId).state;
+    }
+
+    /** The widget's timer, or null if it's IDLE. */
+    T getTimer(int appWidgetId) {
+        return get(appWidgetId).timer;
+    }
+
+    /** The number of widgets with a timer RUNNING or RINGING; a PAUSED timer needs nothing. */
+    int size() {
+        return active.get();
+    }
+
+    /** Adds the timer of every widget not IDLE to out. */
+    void collectTimers(List<? super T> out) {
+        Table t = table;
+        for (AtomicReference<?> slot : t.slots) {
+            T timer = cast(slot.get()).timer;
+            if (timer != null) {
+                out.add(timer);
+            }
+        }
+    }
+
+    /** Makes timer the widget's, RUNNING, if the widget is IDLE.  Returns whether it did. */
+    boolean start(int appWidgetId, T timer) {
+        if (timer == null) {
+            throw new IllegalArgumentException("no timer");
+        }
+        return compareAndSet(slot(appWidgetId), IDLE, null, new State<>(RUNNING, timer));
+    }
+
+    /**
+     * Moves the widget from one state to another, if timer is still its timer and in state from.
+     * Returns whether it did.  Moving to IDLE lets go of the timer.
+     *
+     * @throws IllegalArgumentException  if the state machine has no such move
+     */
+    boolean moveTo(int appWidgetId, T timer, int from, int to) {
+        if (!isAllowed(from, to)) {
+            throw new IllegalArgumentException("no move from " + from + " to " + to);
+        }
+        State<T> next = to == IDLE ? this.<T>idle() : new State<>(to, timer);
+        return compareAndSet(slot(appWidgetId), from, timer, next);
+    }
+
+    /**
+     * Moves a PAUSED widget back to RUNNING with a new timer in place of its paused one, e.g. one
+     * counting down to a new deadline.  Returns whether it did.
+     */
+    boolean resume(int appWidgetId, T paused, T timer) {
+        return compareAndSet(slot(appWidgetId), PAUSED, paused, new State<>(RUNNING, timer));
+    }
+
+    /** Moves the widget to IDLE from whatever state it's in.  Returns the timer it had, or null. */
+    T stop(int appWidgetId) {
+        AtomicReference<State<T>> slot = slot(appWidgetId);
+        while (true) {
+            State<T> current = slot.get();
+            if (current.state == IDLE) {
+                return null;
+            }
+            if (compareAndSet(slot, current.state, current.timer, this.<T>idle())) {
+                return current.timer;
+            }
+        }
+    }
+
+    // the moves of the state machine, besides stopping
+    private static boolean isAllowed(int from, int to) {
+        switch (from) {
+            case RUNNING:
+                return to == RINGING || to == PAUSED || to == IDLE;
+            case RINGING:
+                return to == IDLE;
+            case PAUSED:
+                return to == RUNNING || to == IDLE;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isActive(int state) {
+        return state == RUNNING || state == RINGING;
+    }
+
+    // swaps next in for the slot's state, if it is still in state from with the given timer
+    private boolean compareAndSet(AtomicReference<State<T>> slot, int from, T timer, State<T> next) {
+        while (true) {
+            State<T> current = slot.get();
+            if (current.state != from || current.timer != timer) {
+                return false;
+            }
+            if (slot.compareAndSet(current, next)) {
+                if (!isActive(from) && isActive(next.state)) {
+                    active.incrementAndGet();
+                } else if (isActive(from) && !isActive(next.state)) {
+                    active.decrementAndGet();
+                }
+                return true;
+            }
+        }
+    }
+
+    private State<T> get(int appWidgetId) {
+        Table t = table;
+        int i = Arrays.binarySearch(t.ids, appWidgetId);
+        return i >= 0 ? cast(t.slots[i].get()) : this.<T>idle();
+    }
+
+    // the widget's slot, added to the table if it's the first time the widget has been used
+    @SuppressWarnings("unchecked")
+    private AtomicReference<State<T>> slot(int appWidgetId) {
+        Table t = table;
+        int i = Arrays.binarySearch(t.ids, appWidgetId);
+        if (i >= 0) {
+            return (AtomicReference<State<T>>) t.slots[i];
+        }
+        synchronized (this) {
+            t = table;
+            i = Arrays.binarySearch(t.ids, appWidgetId);
+            if (i >= 0) {
+                return (AtomicReference<State<T>>) t.slots[i];
+            }
+            i = -i - 1;
+            int count = t.ids.length + 1;
+            int[] ids = new int[count];
+            AtomicReference<?>[] slots = new AtomicReference<?>[count];
+            System.arraycopy(t.ids, 0, ids, 0, i);
+            System.arraycopy(t.ids, i, ids, i + 1, count - 1 - i);
+            System.arraycopy(t.slots, 0, slots, 0, i);
+            System.arraycopy(t.slots, i, slots, i + 1, count - 1 - i);
+            AtomicReference<State<T>> slot = new AtomicReference<>(this.<T>idle());
+            ids[i] = appWidgetId;
+            slots[i] = slot;
+            table = new Table(ids, slots);
+            return slot;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <S> State<S> idle() {
+        return (State<S>) IDLE_STATE;
+    }
+
+    @SuppressWarnings("unchecked")
+    private State<T> cast(Object state) {
+        return (State<T>) state;
+    }
+}
@@ -0,0 +1,215 @@
+package tonycase.simpletimer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An opt-in recording of the timers' lifecycles, for lining up with a system trace: every
+ * {@link EventLog} event, and each wakeup of the {@link TickScheduler} with how late it ran, timed in
+ * microseconds on the recorder's {@link NanoClock}.  In the app that is the boot-time clock, which
+ * Perfetto's system traces use by default; {@link System#nanoTime()}, the default here, stops while
+ * the device sleeps, and would drift from the system trace by the time spent asleep.
+ *
+ * While recording, each record is a fixed 21 bytes, put into a buffer allocated when recording starts;
+ * nothing is written to disk, or allocated, until it stops.  Records that don't fit are counted and
+ * dropped.  When it stops, the recording is written to a file, which {@link #read(File)} reads back,
+ * e.g. for the TraceToJson tool to turn into a Chrome trace.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+final class TraceRecorder {
+
+    // events of the recorder's own, numbered apart from EventLog's.  In place of a widget id, they hold
+    // the number of tasks run in the wakeup
+    /** The ticker woke up; how many ms after the first task was due. */
+    static final int FRAME = 100;
+    /** The ticker's wakeup is over. */
+    static final int FRAME_END = 101;
+
+    /** The recorder the app records to. */
+    static final TraceRecorder INSTANCE = new TraceRecorder();
+
+    /** A time source in ns, which never goes backwards. */
+    interface NanoClock {
+        long nanoTime();
+    }
+
+    // System.nanoTime(), for tests and the JVM
+    private static final NanoClock SYSTEM_NANO_TIME = new NanoClock() {
+        @Override public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    // file layout: MAGIC, VERSION, wall clock ms and nanoTime when recording started, the number of
+    // records and the number dropped, then the records: event, widget id, us since the start, value
+    private static final int MAGIC = 0x53545452;   // "STTR"
+    private static final int VERSION = 1;
+    private static final int RECORD_BYTES = 1 + 4 + 8 + 8;
+
+    /** One event, as read back. */
+    static final class Record {
+        final int event;
+        final int appWidgetId;
+        // us since recording started
+        final long time;
+        final long value;
+
+        Record(int event, int appWidgetId, long time, long value) {
+            this.event = event;
+            this.appWidgetId = appWidgetId;
+            this.time = time;
+            this.value = value;
+        }
+    }
+
+    /** A recording, as read back. */
+    static final class Trace {
+        // when recording started, on the wall clock (ms) and on the recorder's clock (ns)
+        final long startedAtMs;
+        final long startedAtNanos;
+        final int dropped;
+        final List<Record> records;
+
+        Trace(long startedAtMs, long startedAtNanos, int dropped, List<Record> records) {
+            this.startedAtMs = startedAtMs;
+            this.startedAtNanos = startedAtNanos;
+            this.dropped = dropped;
+            this.records = records;
+        }
+    }
+
+    private volatile NanoClock clock = SYSTEM_NANO_TIME;
+    private volatile boolean recording;
+    private ByteBuffer buffer;
+    private long startedAtMs;
+    private long startedAtNanos;
+    private int dropped;
+
+    /** Sets the clock the records are timed on.  Ignored while recording, so that a recording is
+     * timed on one clock throughout. */
+    synchronized void setClock(NanoClock clock) {
+        if (!recording) {
+            this.clock = clock;
+        }
+    }
+
+    /** Starts a recording holding up to capacityBytes, dropping any recording not yet written. */
+    synchronized void start(int capacityBytes) {
+        buffer = ByteBuffer.allocate(capacityBytes - capacityBytes % RECORD_BYTES);
+        startedAtMs = System.currentTimeMillis();
+        startedAtNanos = clock.nanoTime();
+        dropped = 0;
+        recording = true;
+    }
+
+    boolean isRecording() {
+        return recording;
+    }
+
+    /** Records an event, timed now, if recording. */
+    void record(int event, int appWidgetId, long value) {
+        if (!recording) {
+            return;
+        }
+        long now = clock.nanoTime();
+        synchronized (this) {
+            if (!recording) {
+                return;
+            }
+            if (buffer.remaining() < RECORD_BYTES) {
+                dropped++;
+                return;
+            }
+            buffer.put((byte) event);
+            buffer.putInt(appWidgetId);
+            buffer.putLong((now - startedAtNanos) / 1000);
+            buffer.putLong(value);
+        }
+    }
+
+    /**
+     * Stops recording and writes what was recorded to file.  Returns the number of records written,
+     * or -1 if there was no recording.
+     */
+    int stop(File file) throws IOException {
+        ByteBuffer recorded;
+        long startedAtMs;
+        long startedAtNanos;
+        int dropped;
+        synchronized (this) {
+            if (!recording) {
+                return -1;
+            }
+            recording = false;
+            recorded = buffer;
+            buffer = null;
+            startedAtMs = this.startedAtMs;
+            startedAtNanos = this.startedAtNanos;
+            dropped = this.dropped;
+        }
+
+        int count = recorded.position() / RECORD_BYTES;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(startedAtMs);
+            out.writeLong(startedAtNanos);
+            out.writeInt(count);
+            out.writeInt(dropped);
+            out.write(recorded.array(), 0, recorded.position());
+        } finally {
+            closeQuietly(out);
+        }
+        return count;
+    }
+
+    /** Reads a recording written by {@link #stop(File)}. */
+    static Trace read(File file) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unrecognized trace file " + file);
+            }
+            long startedAtMs = in.readLong();
+            long startedAtNanos = in.readLong();
+            int count = in.readInt();
+            int dropped = in.readInt();
+            List<Record> records = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int event = in.readByte() & 0xff;
+                int appWidgetId = in.readInt();
+                long time = in.readLong();
+                long value = in.readLong();
+                records.add(new Record(event, appWidgetId, time, value));
+            }
+            return new Trace(startedAtMs, startedAtNanos, dropped, records);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
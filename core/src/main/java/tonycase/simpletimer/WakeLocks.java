@@ -0,0 +1,30 @@
+package tonycase.simpletimer;
+
+/**
+ * The wake locks the timers hold, each shared by every timer holding it.  In the app this is
+ * WakeLockArbiter; the simulator records when each lock would be held.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+interface WakeLocks {
+
+    /** Keeps the cpu running. */
+    int CPU = 0;
+    /** Keeps the screen on while it is on; the user can still turn it off. */
+    int SCREEN = 1;
+    /** Turns the screen on when taken, and keeps it on. */
+    int WAKE_SCREEN = 2;
+
+    /** How many locks there are. */
+    int LOCK_COUNT = 3;
+
+    /**
+     * Has the widget's timer hold the lock until the given time, on the timers' clock, or until
+     * released.  Acquiring a lock the timer already holds changes its time.
+     */
+    void acquire(int lock, int appWidgetId, long until);
+
+    /** Releases every lock the widget's timer holds. */
+    void releaseAll(int appWidgetId);
+}
@@ -0,0 +1,361 @@
+package tonycase.simpletimer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The configuration of every widget, and the time left on its timer while paused, held in memory in a
+ * table keyed by widget id, and saved to one small binary file.  Lookups are a binary search over
+ * primitive arrays, with no locking.  Changes are written behind: the file is rewritten shortly after
+ * a change, once for any number of changes made in that time.
+ *
+ * The table is immutable; a change swaps in a new copy.  Widgets are configured rarely and looked up
+ * on every tap.
+ *
+ * Nothing here depends on Android, so it can be benchmarked and tested off the device; I/O errors are
+ * thrown to the caller, or for write-behind flushes kept in {@link #getLastWriteError()}.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 5/30/16.
+ */
+final class WidgetConfigStore {
+
+    /** Returned for the duration of a widget with no configuration. */
+    static final int NO_DURATION = -1;
+
+    /** Returned for the time left on a widget's timer that isn't paused. */
+    static final long NOT_PAUSED = -1;
+
+    // delay between a change and writing the file, so changes made together are written together
+    static final long FLUSH_DELAY_MS = 200;
+
+    // file layout: MAGIC, VERSION, count, then count * (id, duration, flags, paused ms).  Version 1
+    // files have no paused ms.
+    private static final int MAGIC = 0x53545746;   // "STWF"
+    private static final int VERSION = 2;
+
+    // flags
+    private static final int FLAG_SCREEN_ON = 1;
+
+    // The configuration of all widgets, sorted by id.  Never modified once published.
+    private static final class Table {
+        final int[] ids;
+        final int[] durations;
+        final byte[] flags;
+        final long[] paused;
+
+        Table(int[] ids, int[] durations, byte[] flags, long[] paused) {
+            this.ids = ids;
+            this.durations = durations;
+            this.flags = flags;
+            this.paused = paused;
+        }
+
+        int getDuration(int appWidgetId) {
+            int i = Arrays.binarySearch(ids, appWidgetId);
+            return i >= 0 ? durations[i] : NO_DURATION;
+        }
+
+        boolean getScreenOn(int appWidgetId) {
+            int i = Arrays.binarySearch(ids, appWidgetId);
+            return i >= 0 && (flags[i] & FLAG_SCREEN_ON) != 0;
+        }
+
+        long getPausedRemaining(int appWidgetId) {
+            int i = Arrays.binarySearch(ids, appWidgetId);
+            return i >= 0 ? paused[i] : NOT_PAUSED;
+        }
+    }
+
+    /**
+     * The configuration of every widget at one moment, unaffected by later changes; for reading many
+     * widgets at once, e.g. to draw them all.
+     */
+    static final class Snapshot {
+        private final Table table;
+
+        private Snapshot(Table table) {
+            this.table = table;
+        }
+
+        /** The duration in seconds for the widget, or {@link #NO_DURATION}. */
+        int getDuration(int appWidgetId) {
+            return table.getDuration(appWidgetId);
+        }
+
+        /** Whether the widget keeps the screen on while counting down. */
+        boolean getScreenOn(int appWidgetId) {
+            return table.getScreenOn(appWidgetId);
+        }
+
+        /** The ms left on the widget's paused timer, or {@link #NOT_PAUSED}. */
+        long getPausedRemaining(int appWidgetId) {
+            return table.getPausedRemaining(appWidgetId);
+        }
+    }
+
+    private static final Table EMPTY = new Table(new int[0], new int[0], new byte[0], new long[0]);
+
+    private final File file;
+    private final ScheduledExecutorService writer;
+
+    private volatile Table table = EMPTY;
+
+    // serializes writes of the file
+    private final Object writeLock = new Object();
+
+    // whether a write is waiting to run
+    private boolean flushScheduled;
+
+    // the error from the last write-behind flush, if it failed
+    private volatile IOException lastWriteError;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override public void run() {
+            synchronized (WidgetConfigStore.this) {
+                flushScheduled = false;
+            }
+            try {
+                flushNow();
+                lastWriteError = null;
+            } catch (IOException e) {
+                // tried again with the next change
+                lastWriteError = e;
+            }
+        }
+    };
+
+    /**
+     * @param file  where the configuration is kept
+     * @param writer  runs the write-behind flushes
+     */
+    WidgetConfigStore(File file, ScheduledExecutorService writer) {
+        this.file = file;
+        this.writer = writer;
+    }
+
+    /** Whether there is a saved file to {@link #load()}. */
+    boolean exists() {
+        return file.exists();
+    }
+
+    /** Reads the saved configuration, replacing what is in memory. */
+    void load() throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != 1 && version != VERSION) {
+                throw new IOException("unrecognized widget config file " + file);
+            }
+            int count = in.readInt();
+            int[] ids = new int[count];
+            int[] durations = new int[count];
+            byte[] flags = new byte[count];
+            long[] paused = new long[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readInt();
+                durations[i] = in.readInt();
+                flags[i] = in.readByte();
+                paused[i] = version == 1 ? NOT_PAUSED : in.readLong();
+            }
+            table = new Table(ids, durations, flags, paused);
+        } catch (FileNotFoundException e) {
+            // nothing saved yet
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /** The duration in seconds for the widget, or {@link #NO_DURATION}. */
+    int getDuration(int appWidgetId) {
+        return table.getDuration(appWidgetId);
+    }
+
+    /** Whether the widget keeps the screen on while counting down. */
+    boolean getScreenOn(int appWidgetId) {
+        return table.getScreenOn(appWidgetId);
+    }
+
+    /** The ms left on the widget's paused timer, or {@link #NOT_PAUSED}. */
+    long getPausedRemaining(int appWidgetId) {
+        return table.getPausedRemaining(appWidgetId);
+    }
+
+    /** The configuration of every widget as it is now, read in one step. */
+    Snapshot snapshot() {
+        return new Snapshot(table);
+    }
+
+    void putDuration(int appWidgetId, int durationSec) {
+        synchronized (this) {
+            Table t = table;
+            int i = Arrays.binarySearch(t.ids, appWidgetId);
+            if (i < 0) {
+                t = insert(t, -i - 1, appWidgetId);
+                i = -i - 1;
+            } else {
+                t = copy(t);
+            }
+            t.durations[i] = durationSec;
+            table = t;
+        }
+        scheduleFlush();
+    }
+
+    void putScreenOn(int appWidgetId, boolean screenOn) {
+        synchronized (this) {
+            Table t = table;
+            int i = Arrays.binarySearch(t.ids, appWidgetId);
+            if (i < 0) {
+                t = insert(t, -i - 1, appWidgetId);
+                i = -i - 1;
+            } else {
+                t = copy(t);
+            }
+            t.flags[i] = (byte) (screenOn ? t.flags[i] | FLAG_SCREEN_ON : t.flags[i] & ~FLAG_SCREEN_ON);
+            table = t;
+        }
+        scheduleFlush();
+    }
+
+    /** Records the ms left on the widget's paused timer, or {@link #NOT_PAUSED} once it isn't. */
+    void putPausedRemaining(int appWidgetId, long remainingMs) {
+        synchronized (this) {
+            Table t = table;
+            int i = Arrays.binarySearch(t.ids, appWidgetId);
+            if (i < 0) {
+                if (remainingMs == NOT_PAUSED) {
+                    return;
+                }
+                t = insert(t, -i - 1, appWidgetId);
+                i = -i - 1;
+            } else if (t.paused[i] == remainingMs) {
+                return;
+            } else {
+                t = copy(t);
+            }
+            t.paused[i] = remainingMs;
+            table = t;
+        }
+        scheduleFlush();
+    }
+
+    void remove(int appWidgetId) {
+        synchronized (this) {
+            Table t = table;
+            int i = Arrays.binarySearch(t.ids, appWidgetId);
+            if (i < 0) {
+                return;
+            }
+            int count = t.ids.length - 1;
+            int[] ids = new int[count];
+            int[] durations = new int[count];
+            byte[] flags = new byte[count];
+            long[] paused = new long[count];
+            System.arraycopy(t.ids, 0, ids, 0, i);
+            System.arraycopy(t.ids, i + 1, ids, i, count - i);
+            System.arraycopy(t.durations, 0, durations, 0, i);
+            System.arraycopy(t.durations, i + 1, durations, i, count - i);
+            System.arraycopy(t.flags, 0, flags, 0, i);
+            System.arraycopy(t.flags, i + 1, flags, i, count - i);
+            System.arraycopy(t.paused, 0, paused, 0, i);
+            System.arraycopy(t.paused, i + 1, paused, i, count - i);
+            table = new Table(ids, durations, flags, paused);
+        }
+        scheduleFlush();
+    }
+
+    /** Writes the configuration now, on the calling thread. */
+    void flushNow() throws IOException {
+        synchronized (writeLock) {
+            write(table);
+        }
+    }
+
+    private void write(Table t) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(t.ids.length);
+            for (int i = 0; i < t.ids.length; i++) {
+                out.writeInt(t.ids[i]);
+                out.writeInt(t.durations[i]);
+                out.writeByte(t.flags[i]);
+                out.writeLong(t.paused[i]);
+            }
+            out.close();
+            out = null;
+            // replace the old file in one step, so a crash mid-write leaves it intact
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not replace " + file);
+            }
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /** Why the last write-behind flush failed, or null if it succeeded. */
+    IOException getLastWriteError() {
+        return lastWriteError;
+    }
+
+    private void scheduleFlush() {
+        synchronized (this) {
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        writer.schedule(flushTask, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // a copy of t with room for a new id at index i
+    private static Table insert(Table t, int i, int appWidgetId) {
+        int count = t.ids.length + 1;
+        int[] ids = new int[count];
+        int[] durations = new int[count];
+        byte[] flags = new byte[count];
+        long[] paused = new long[count];
+        System.arraycopy(t.ids, 0, ids, 0, i);
+        System.arraycopy(t.ids, i, ids, i + 1, count - i - 1);
+        System.arraycopy(t.durations, 0, durations, 0, i);
+        System.arraycopy(t.durations, i, durations, i + 1, count - i - 1);
+        System.arraycopy(t.flags, 0, flags, 0, i);
+        System.arraycopy(t.flags, i, flags, i + 1, count - i - 1);
+        System.arraycopy(t.paused, 0, paused, 0, i);
+        System.arraycopy(t.paused, i, paused, i + 1, count - i - 1);
+        ids[i] = appWidgetId;
+        durations[i] = NO_DURATION;
+        paused[i] = NOT_PAUSED;
+        return new Table(ids, durations, flags, paused);
+    }
+
+    private static Table copy(Table t) {
+        return new Table(t.ids.clone(), t.durations.clone(), t.flags.clone(), t.paused.clone());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
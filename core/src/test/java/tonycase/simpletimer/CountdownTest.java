@@ -0,0 +1,79 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CountdownTest {
+
+    @Test
+    public void showsWholeSecondsRoundedUp() throws Exception {
+        FakeClock clock = new FakeClock(5000);
+        Countdown countdown = new Countdown(clock, 90);
+
+        assertEquals(90, countdown.secondsRemaining(clock.now()));
+        clock.advance(1);
+        assertEquals(90, countdown.secondsRemaining(clock.now()));
+        clock.advance(999);
+        assertEquals(89, countdown.secondsRemaining(clock.now()));
+        clock.advance(89 * 1000 - 1);
+        assertEquals(1, countdown.secondsRemaining(clock.now()));
+        assertFalse(countdown.isExpired(clock.now()));
+        clock.advance(1);
+        assertEquals(0, countdown.secondsRemaining(clock.now()));
+        assertTrue(countdown.isExpired(clock.now()));
+    }
+
+    @Test
+    public void nextTickLandsOnSecondBoundaries() throws Exception {
+        Countdown countdown = new Countdown(0, 3);
+
+        assertEquals(1000, countdown.nextTick(0));
+        // a late tick still aims for the next exact boundary
+        assertEquals(2000, countdown.nextTick(1170));
+        assertEquals(3000, countdown.nextTick(2999));
+        // then nothing changes until the alarm is over
+        assertEquals(3000 + Countdown.ALARM_DURATION_MS, countdown.nextTick(3000));
+        assertEquals(3000 + Countdown.ALARM_DURATION_MS, countdown.nextTick(3300));
+    }
+
+    @Test
+    public void lateTicksDoNotAccumulate() throws Exception {
+        int hours = 10;
+        Countdown countdown = new Countdown(0, hours * 3600);
+
+        // every tick runs 37ms late, as if each display update was slow
+        long now = 0;
+        int ticks = 0;
+        while (!countdown.isExpired(now)) {
+            now = countdown.nextTick(now) + 37;
+            ticks++;
+        }
+        assertEquals(hours * 3600, ticks);
+        assertEquals(hours * 3600 * 1000L + 37, now);
+    }
+
+    @Test
+    public void alarmPhaseFollowsTheDeadline() throws Exception {
+        Countdown countdown = new Countdown(0, 1);
+
+        assertFalse(countdown.isExpired(999));
+        assertTrue(countdown.isExpired(1000));
+        assertFalse(countdown.isAlarmOver(1000 + Countdown.ALARM_DURATION_MS - 1));
+        assertTrue(countdown.isAlarmOver(1000 + Countdown.ALARM_DURATION_MS));
+    }
+
+    @Test
+    public void resumesWithTheTimeLeftWhenPaused() throws Exception {
+        Countdown countdown = new Countdown(0, 60);
+        long remaining = countdown.millisRemaining(20500);
+        assertEquals(39500, remaining);
+        assertEquals(40, Countdown.toDisplaySeconds(remaining));
+
+        // resumed an hour later
+        Countdown resumed = Countdown.endingAt(3600000 + remaining, countdown.getDurationSec());
+        assertEquals(40, resumed.secondsRemaining(3600000));
+        assertEquals(60, resumed.getDurationSec());
+        assertEquals(0, countdown.millisRemaining(70000));
+    }
+}
@@ -0,0 +1,44 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DurationFormatterTest {
+
+    @Test
+    public void formatsMinutesAndSeconds() throws Exception {
+        assertEquals("0:00", DurationFormatter.format(0).toString());
+        assertEquals("0:09", DurationFormatter.format(9).toString());
+        assertEquals("1:00", DurationFormatter.format(60).toString());
+        assertEquals("59:59", DurationFormatter.format(3599).toString());
+    }
+
+    @Test
+    public void formatsHours() throws Exception {
+        assertEquals("1:00:00", DurationFormatter.format(3600).toString());
+        assertEquals("1:23:45", DurationFormatter.format(5025).toString());
+        assertEquals("10:00:00", DurationFormatter.format(36000).toString());
+        assertEquals("596523:14:07", DurationFormatter.format(Integer.MAX_VALUE).toString());
+    }
+
+    @Test
+    public void clampsNegativeToZero() throws Exception {
+        assertEquals("0:00", DurationFormatter.format(-5).toString());
+    }
+
+    @Test
+    public void cachesDurationsUnderAnHour() throws Exception {
+        assertSame(DurationFormatter.format(754), DurationFormatter.format(754));
+        assertSame(DurationFormatter.format(3599), DurationFormatter.format(3599));
+        assertNotSame(DurationFormatter.format(3600), DurationFormatter.format(3600));
+        assertEquals("1:00:00", DurationFormatter.format(DurationFormatter.CACHE_LIMIT).toString());
+    }
+
+    @Test
+    public void formatsIntoBuffer() throws Exception {
+        char[] buf = new char[16];
+        int length = DurationFormatter.formatTo(36005, buf);
+        assertEquals("10:00:05", new String(buf, 0, length));
+    }
+}
@@ -0,0 +1,66 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class EventLogTest {
+
+    private static String[] dump(EventLog log) {
+        StringWriter out = new StringWriter();
+        PrintWriter pw = new PrintWriter(out);
+        log.dump(pw);
+        pw.flush();
+        String text = out.toString().trim();
+        return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+
+    @Test
+    public void dumpsEventsOldestFirst() throws Exception {
+        EventLog log = new EventLog(8);
+        log.record(EventLog.TAP, 3, 60);
+        log.record(EventLog.START, 3, 12345);
+
+        String[] lines = dump(log);
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].endsWith(" tap widget=3 value=60"));
+        assertTrue(lines[1], lines[1].endsWith(" start widget=3 value=12345"));
+    }
+
+    @Test
+    public void keepsOnlyTheLatestEvents() throws Exception {
+        EventLog log = new EventLog(4);
+        for (int i = 0; i < 10; i++) {
+            log.record(EventLog.TICK, 1, i);
+        }
+        String[] lines = dump(log);
+        assertEquals(4, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("value=6"));
+        assertTrue(lines[3], lines[3].endsWith("value=9"));
+        assertEquals(10, log.count());
+    }
+
+    @Test
+    public void recordsFromManyThreads() throws Exception {
+        final EventLog log = new EventLog(1024);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int widget = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override public void run() {
+                    for (int i = 0; i < 256; i++) {
+                        log.record(EventLog.TICK, widget, i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1024, dump(log).length);
+    }
+}
@@ -0,0 +1,22 @@
+package tonycase.simpletimer;
+
+/**
+ * A {@link Clock} for tests, which only moves when told to.
+ */
+class FakeClock implements Clock {
+
+    private long now;
+
+    FakeClock(long now) {
+        this.now = now;
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    void advance(long ms) {
+        now += ms;
+    }
+}
@@ -0,0 +1,57 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram(1000);
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        assertEquals(10, histogram.getCount());
+        assertEquals(5, histogram.getValueAtPercentile(50));
+        assertEquals(9, histogram.getValueAtPercentile(90));
+        assertEquals(10, histogram.getValueAtPercentile(100));
+        assertEquals(5.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void largeValuesAreWithinThreePercent() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram(100 * 1000 * 1000);
+        for (long value : new long[] {100, 1234, 56789, 987654, 9999999}) {
+            histogram.reset();
+            histogram.record(value);
+            histogram.record(value * 2);
+            long median = histogram.getValueAtPercentile(50);
+            assertTrue(value + " reported as " + median,
+                    median >= value && median <= value + value * 3 / 100);
+            assertEquals(value * 2, histogram.getMax());
+        }
+    }
+
+    @Test
+    public void valuesOutOfRangeAreClamped() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram(100);
+        histogram.record(-5);
+        histogram.record(1000000);
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+        assertEquals(1000000, histogram.getMax());
+    }
+
+    @Test
+    public void printsSummary() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram(1000);
+        histogram.record(7);
+        StringWriter out = new StringWriter();
+        histogram.print(new PrintWriter(out), "lateness", "ms");
+        assertTrue(out.toString().startsWith("lateness (ms): count=1 mean=7.0 p50=7 p90=7 p99=7 max=7"));
+    }
+}
@@ -0,0 +1,121 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TickSchedulerTest {
+
+    // records when it was ticked, and ticks every period until it has run count times
+    private static class RecordingTask implements TickScheduler.Task {
+        final List<Long> ticks = new ArrayList<>();
+        final long period;
+        int remaining;
+
+        RecordingTask(long period, int count) {
+            this.period = period;
+            this.remaining = count;
+        }
+
+        @Override
+        public long onTick(long now) {
+            ticks.add(now);
+            return --remaining > 0 ? now + period : TickScheduler.DONE;
+        }
+    }
+
+    @Test
+    public void runsTasksInDeadlineOrder() throws Exception {
+        TickScheduler scheduler = new TickScheduler(new FakeClock(0));
+        RecordingTask a = new RecordingTask(1000, 3);
+        RecordingTask b = new RecordingTask(1000, 1);
+        scheduler.schedule(a, 500);
+        scheduler.schedule(b, 200);
+
+        assertEquals(500, scheduler.runDue(200));
+        assertEquals(1, b.ticks.size());
+        assertTrue(a.ticks.isEmpty());
+
+        assertEquals(1500, scheduler.runDue(500));
+        assertEquals(2500, scheduler.runDue(1500));
+        assertEquals(TickScheduler.DONE, scheduler.runDue(2500));
+        assertEquals(3, a.ticks.size());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void batchesTasksDueInTheSameTick() throws Exception {
+        TickScheduler scheduler = new TickScheduler(new FakeClock(0));
+        final int[] frames = new int[1];
+        scheduler.setFrameListener(new TickScheduler.FrameListener() {
+            @Override public void onFrameStart() {
+                frames[0]++;
+            }
+            @Override public void onFrameEnd() {
+            }
+        });
+        RecordingTask a = new RecordingTask(1000, 1);
+        RecordingTask b = new RecordingTask(1000, 1);
+        scheduler.schedule(a, 1000);
+        scheduler.schedule(b, 1000 + TickScheduler.TICK_WINDOW_MS);
+
+        assertEquals(TickScheduler.DONE, scheduler.runDue(1000));
+        assertEquals(1, frames[0]);
+        assertEquals(Long.valueOf(1000), a.ticks.get(0));
+        // run a little early, as of its own due time
+        assertEquals(Long.valueOf(1000 + TickScheduler.TICK_WINDOW_MS), b.ticks.get(0));
+    }
+
+    @Test
+    public void cancelledTasksAreNotRun() throws Exception {
+        TickScheduler scheduler = new TickScheduler(new FakeClock(0));
+        RecordingTask a = new RecordingTask(1000, 5);
+        scheduler.schedule(a, 0);
+        scheduler.runDue(0);
+        scheduler.cancel(a);
+
+        assertEquals(TickScheduler.DONE, scheduler.runDue(5000));
+        assertEquals(1, a.ticks.size());
+    }
+
+    @Test
+    public void rescheduledTasksRunOnlyAtTheirNewTime() throws Exception {
+        TickScheduler scheduler = new TickScheduler(new FakeClock(0));
+        List<RecordingTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            RecordingTask task = new RecordingTask(1000, 1);
+            tasks.add(task);
+            scheduler.schedule(task, 60000);
+        }
+        // enough moves to sweep the queue more than once
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < tasks.size(); i++) {
+                scheduler.schedule(tasks.get(i), 2000 + round * 1000 + i % 2);
+            }
+        }
+        for (int i = 0; i < tasks.size(); i += 2) {
+            scheduler.cancel(tasks.get(i));
+        }
+
+        // the cancelled tasks, at 4000, are skipped
+        assertEquals(4001, scheduler.nextDueTime());
+        assertEquals(TickScheduler.DONE, scheduler.runDue(4001));
+        assertEquals(0, scheduler.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            assertEquals(i % 2 == 0 ? 0 : 1, tasks.get(i).ticks.size());
+        }
+    }
+
+    @Test
+    public void alignsNewTimersToTheRunningFrame() throws Exception {
+        TickScheduler scheduler = new TickScheduler(new FakeClock(0));
+        assertEquals(1234, scheduler.alignToFrame(1234));
+        scheduler.schedule(new RecordingTask(1000, 1), 2234);
+
+        assertEquals(5234, scheduler.alignToFrame(5400));
+        assertEquals(6234, scheduler.alignToFrame(5800));
+    }
+}
@@ -0,0 +1,116 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerCommandTest {
+
+    private static TimerCommand command(int type, int lengthSec, int startId) {
+        return new TimerCommand(type, 7, lengthSec, startId);
+    }
+
+    private static TimerCommand taps(int count) {
+        TimerCommand merged = command(TimerCommand.TOGGLE, 60, 1);
+        for (int i = 2; i <= count; i++) {
+            merged = TimerCommand.merge(merged, command(TimerCommand.TOGGLE, 60, i));
+        }
+        return merged;
+    }
+
+    // the types of the commands in the chain, in the order they run
+    private static List<Integer> types(TimerCommand command) {
+        List<Integer> types = new ArrayList<>();
+        for (TimerCommand step = command; step != null; step = step.then) {
+            types.add(step.type);
+        }
+        return types;
+    }
+
+    private static List<Integer> types(int... types) {
+        List<Integer> list = new ArrayList<>();
+        for (int type : types) {
+            list.add(type);
+        }
+        return list;
+    }
+
+    @Test
+    public void tapsAreChainedNotCancelled() throws Exception {
+        // two taps start and pause an idle timer, and stop a ringing one and start it again
+        TimerCommand merged = taps(2);
+        assertEquals(types(TimerCommand.TOGGLE, TimerCommand.TOGGLE), types(merged));
+        assertEquals(2, merged.startId);
+        assertEquals(2, merged.then.startId);
+
+        assertEquals(types(TimerCommand.TOGGLE, TimerCommand.TOGGLE, TimerCommand.TOGGLE), types(taps(3)));
+        // four taps end where two do
+        assertEquals(types(TimerCommand.TOGGLE, TimerCommand.TOGGLE), types(taps(4)));
+        assertEquals(types(TimerCommand.TOGGLE, TimerCommand.TOGGLE, TimerCommand.TOGGLE), types(taps(5)));
+    }
+
+    @Test
+    public void stopOverridesWhateverCameBefore() throws Exception {
+        TimerCommand merged = TimerCommand.merge(taps(3), command(TimerCommand.STOP, 0, 4));
+        assertEquals(types(TimerCommand.STOP), types(merged));
+        assertEquals(4, merged.startId);
+
+        assertEquals(types(TimerCommand.STOP), types(TimerCommand.merge(command(TimerCommand.START, 60, 1),
+                command(TimerCommand.STOP, 0, 2))));
+    }
+
+    @Test
+    public void secondStartDoesNothing() throws Exception {
+        TimerCommand merged = TimerCommand.merge(command(TimerCommand.START, 60, 1),
+                command(TimerCommand.START, 90, 2));
+        assertEquals(types(TimerCommand.START), types(merged));
+        assertEquals(60, merged.lengthSec);
+        assertEquals(2, merged.startId);
+    }
+
+    @Test
+    public void startAndToggleAreChained() throws Exception {
+        // a start then a tap leaves a timer paused, which no single command does
+        assertEquals(types(TimerCommand.START, TimerCommand.TOGGLE), types(TimerCommand.merge(
+                command(TimerCommand.START, 60, 1), command(TimerCommand.TOGGLE, 60, 2))));
+        // a tap then a start differs from a start on a ringing timer, which the tap stops
+        assertEquals(types(TimerCommand.TOGGLE, TimerCommand.START), types(TimerCommand.merge(
+                command(TimerCommand.TOGGLE, 60, 1), command(TimerCommand.START, 90, 2))));
+
+        TimerCommand merged = TimerCommand.merge(command(TimerCommand.STOP, 0, 1),
+                command(TimerCommand.TOGGLE, 90, 2));
+        assertEquals(types(TimerCommand.STOP, TimerCommand.TOGGLE), types(merged));
+        assertEquals(90, merged.then.lengthSec);
+    }
+
+    @Test
+    public void noneChangesNothing() throws Exception {
+        TimerCommand none = command(TimerCommand.NONE, 0, 1);
+        assertEquals(types(TimerCommand.TOGGLE),
+                types(TimerCommand.merge(none, command(TimerCommand.TOGGLE, 60, 2))));
+        TimerCommand merged = TimerCommand.merge(command(TimerCommand.START, 60, 1),
+                command(TimerCommand.NONE, 0, 2));
+        assertEquals(types(TimerCommand.START), types(merged));
+        assertEquals(2, merged.startId);
+    }
+
+    @Test
+    public void remembersAFirstFrameShownByATap() throws Exception {
+        TimerCommand tap = new TimerCommand(TimerCommand.TOGGLE, 7, 60, 1, 1500, true);
+        TimerCommand merged = TimerCommand.merge(tap, command(TimerCommand.STOP, 0, 2));
+        assertEquals(TimerCommand.STOP, merged.type);
+        assertTrue(merged.firstFrameShown);
+
+        merged = TimerCommand.merge(command(TimerCommand.STOP, 0, 1), tap);
+        assertEquals(types(TimerCommand.STOP, TimerCommand.TOGGLE), types(merged));
+        assertFalse(merged.firstFrameShown);
+        assertEquals(1500, merged.then.tappedAt);
+        assertTrue(merged.then.firstFrameShown);
+
+        assertFalse(command(TimerCommand.TOGGLE, 60, 1).firstFrameShown);
+        assertEquals(TimerCommand.NOT_TAPPED, command(TimerCommand.TOGGLE, 60, 1).tappedAt);
+    }
+}
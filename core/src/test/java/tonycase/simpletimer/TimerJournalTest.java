@@ -0,0 +1,121 @@
+package tonycase.simpletimer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimerJournalTest {
+
+    private static final long BOOT = 1465000000000L;
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void restoresRunningTimers() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TimerJournal journal = new TimerJournal(file, BOOT);
+        assertTrue(journal.restore().isEmpty());
+        journal.recordStart(1, 60, 61000);
+        journal.recordStart(2, 300, 305000);
+        journal.recordStart(3, 10, 15000);
+        journal.recordStop(2);
+        journal.close();
+        assertTrue(TimerJournal.hasRecords(file));
+
+        // the process dies; a new one reads the journal back
+        List<TimerJournal.Entry> entries = new TimerJournal(file, BOOT + 500).restore();
+        assertEquals(2, entries.size());
+        assertEquals(1, entries.get(0).appWidgetId);
+        assertEquals(60, entries.get(0).durationSec);
+        assertEquals(61000, entries.get(0).deadline);
+        assertEquals(3, entries.get(1).appWidgetId);
+    }
+
+    @Test
+    public void readsWhileBeingWrittenWithoutChangingIt() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TimerJournal journal = new TimerJournal(file, BOOT);
+        journal.restore();
+        journal.recordStart(4, 60, 61000);
+        journal.recordStart(5, 90, 91000);
+        journal.recordStop(4);
+        long length = file.length();
+
+        List<TimerJournal.Entry> entries = TimerJournal.read(file, BOOT + 500);
+        assertEquals(1, entries.size());
+        assertEquals(5, entries.get(0).appWidgetId);
+        assertEquals(length, file.length());
+        assertTrue(TimerJournal.read(file, BOOT + 3600 * 1000).isEmpty());
+
+        // the writer carries on appending
+        journal.recordStart(6, 30, 31000);
+        journal.close();
+        assertEquals(2, TimerJournal.read(file, BOOT).size());
+    }
+
+    @Test
+    public void emptiesWhenNothingRuns() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TimerJournal journal = new TimerJournal(file, BOOT);
+        journal.restore();
+        journal.recordStart(1, 60, 61000);
+        journal.recordStop(1);
+        journal.close();
+
+        assertFalse(TimerJournal.hasRecords(file));
+    }
+
+    @Test
+    public void discardsJournalFromEarlierBoot() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TimerJournal journal = new TimerJournal(file, BOOT);
+        journal.restore();
+        journal.recordStart(1, 60, 61000);
+        journal.close();
+
+        // a reboot an hour later
+        assertTrue(new TimerJournal(file, BOOT + 3600 * 1000).restore().isEmpty());
+    }
+
+    @Test
+    public void keepsRecordsBeforeATornWrite() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TimerJournal journal = new TimerJournal(file, BOOT);
+        journal.restore();
+        journal.recordStart(1, 60, 61000);
+        journal.recordStart(2, 90, 91000);
+        journal.close();
+
+        // lose the last few bytes, as if the process died mid-write
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        List<TimerJournal.Entry> entries = new TimerJournal(file, BOOT).restore();
+        assertEquals(1, entries.size());
+        assertEquals(1, entries.get(0).appWidgetId);
+    }
+
+    @Test
+    public void compactsLongJournals() throws Exception {
+        File file = new File(folder.getRoot(), "journal");
+        TimerJournal journal = new TimerJournal(file, BOOT);
+        journal.restore();
+        journal.recordStart(1, 60, 61000);
+        for (int i = 0; i < 500; i++) {
+            journal.recordStart(2, 10, 10000 + i);
+            journal.recordStop(2);
+        }
+        journal.close();
+
+        assertTrue(file.length() < 1000);
+        List<TimerJournal.Entry> entries = new TimerJournal(file, BOOT).restore();
+        assertEquals(1, entries.size());
+    }
+}
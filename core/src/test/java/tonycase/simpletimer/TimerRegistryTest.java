@@ -0,0 +1,183 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TimerRegistryTest {
+
+    // counts how many times it was let go of, by a stop or a move to IDLE
+    private static class Timer {
+        final AtomicInteger ended = new AtomicInteger();
+    }
+
+    @Test
+    public void movesThroughTheStates() throws Exception {
+        TimerRegistry<Timer> registry = new TimerRegistry<>();
+        Timer timer = new Timer();
+        assertEquals(TimerRegistry.IDLE, registry.getState(5));
+
+        assertTrue(registry.start(5, timer));
+        assertFalse(registry.start(5, new Timer()));
+        assertEquals(1, registry.size());
+        assertSame(timer, registry.getTimer(5));
+
+        assertTrue(registry.moveTo(5, timer, TimerRegistry.RUNNING, TimerRegistry.RINGING));
+        // the ticker and the expiry alarm both reach zero; one wins
+        assertFalse(registry.moveTo(5, timer, TimerRegistry.RUNNING, TimerRegistry.RINGING));
+        assertEquals(TimerRegistry.RINGING, registry.getState(5));
+
+        assertTrue(registry.moveTo(5, timer, TimerRegistry.RINGING, TimerRegistry.IDLE));
+        assertNull(registry.getTimer(5));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void staleTimersCantMoveANewOne() throws Exception {
+        TimerRegistry<Timer> registry = new TimerRegistry<>();
+        Timer old = new Timer();
+        registry.start(3, old);
+        assertSame(old, registry.stop(3));
+        assertNull(registry.stop(3));
+
+        Timer timer = new Timer();
+        registry.start(3, timer);
+        assertFalse(registry.moveTo(3, old, TimerRegistry.RUNNING, TimerRegistry.RINGING));
+        assertEquals(TimerRegistry.RUNNING, registry.getState(3));
+    }
+
+    @Test
+    public void pausedTimersResumeWithANewTimer() throws Exception {
+        TimerRegistry<Timer> registry = new TimerRegistry<>();
+        Timer timer = new Timer();
+        registry.start(1, timer);
+        assertTrue(registry.moveTo(1, timer, TimerRegistry.RUNNING, TimerRegistry.PAUSED));
+        assertEquals(0, registry.size());
+        assertSame(timer, registry.getTimer(1));
+
+        Timer resumed = new Timer();
+        assertTrue(registry.resume(1, timer, resumed));
+        assertFalse(registry.resume(1, timer, new Timer()));
+        assertSame(resumed, registry.getTimer(1));
+        assertEquals(TimerRegistry.RUNNING, registry.getState(1));
+        assertEquals(1, registry.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMovesOutsideTheStateMachine() throws Exception {
+        TimerRegistry<Timer> registry = new TimerRegistry<>();
+        Timer timer = new Timer();
+        registry.start(1, timer);
+        registry.moveTo(1, timer, TimerRegistry.RUNNING, TimerRegistry.RUNNING);
+    }
+
+    @Test
+    public void collectsTimersInUse() throws Exception {
+        TimerRegistry<Timer> registry = new TimerRegistry<>();
+        Timer a = new Timer();
+        Timer b = new Timer();
+        registry.start(9, a);
+        registry.start(2, b);
+        registry.start(4, new Timer());
+        registry.stop(4);
+
+        List<Timer> timers = new ArrayList<>();
+        registry.collectTimers(timers);
+        assertEquals(2, timers.size());
+        assertTrue(timers.contains(a) && timers.contains(b));
+    }
+
+    // Tap storms, expiries and deletions racing on a few widgets: every timer started is let go of
+    // exactly once, and none is left behind.
+    @Test
+    public void racingMovesNeverLoseOrDoubleEndATimer() throws Exception {
+        final TimerRegistry<Timer> registry = new TimerRegistry<>();
+        final int widgets = 4;
+        final int threads = 8;
+        final int iterations = 20000;
+        final List<Timer> started = new ArrayList<>();
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger failures = new AtomicInteger();
+
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            Thread worker = new Thread(new Runnable() {
+                @Override public void run() {
+                    try {
+                        go.await();
+                        for (int i = 0; i < iterations; i++) {
+                            step(registry, random.nextInt(widgets), random.nextInt(5), started);
+                        }
+                    } catch (Throwable e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, failures.get());
+
+        for (int id = 0; id < widgets; id++) {
+            Timer timer = registry.stop(id);
+            if (timer != null) {
+                timer.ended.incrementAndGet();
+            }
+        }
+        assertEquals(0, registry.size());
+        synchronized (started) {
+            assertFalse(started.isEmpty());
+            for (Timer timer : started) {
+                assertEquals(1, timer.ended.get());
+            }
+        }
+    }
+
+    private static void step(TimerRegistry<Timer> registry, int id, int op, List<Timer> started) {
+        Timer current = registry.getTimer(id);
+        switch (op) {
+            case 0:
+                Timer timer = new Timer();
+                if (registry.start(id, timer)) {
+                    synchronized (started) {
+                        started.add(timer);
+                    }
+                }
+                break;
+            case 1:
+                Timer stopped = registry.stop(id);
+                if (stopped != null) {
+                    stopped.ended.incrementAndGet();
+                }
+                break;
+            case 2:
+                if (current != null) {
+                    registry.moveTo(id, current, TimerRegistry.RUNNING, TimerRegistry.RINGING);
+                }
+                break;
+            case 3:
+                if (current != null
+                        && registry.moveTo(id, current, TimerRegistry.RINGING, TimerRegistry.IDLE)) {
+                    current.ended.incrementAndGet();
+                }
+                break;
+            default:
+                if (current != null) {
+                    registry.moveTo(id, current, TimerRegistry.RUNNING, TimerRegistry.PAUSED);
+                    registry.moveTo(id, current, TimerRegistry.PAUSED, TimerRegistry.RUNNING);
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package tonycase.simpletimer;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs the {@link TimerEngine} off the device, on virtual time.  Nothing sleeps: the simulator jumps
+ * the clock to whichever comes first of the next tick, the next expiry alarm and the next scripted
+ * tap or screen change, so hours of timers run in seconds, and a run is the same every time.
+ *
+ * The device is stood in for by fakes that count what the timers do: the widget faces drawn, by kind;
+ * the frames ticked; each time a kernel wake lock would be taken and let go; and the alarms sounding.
+ * While the screen is off and no wake lock is held the device is asleep, and ticks coming due wait
+ * until something wakes it, as on a phone.
+ *
+ * Run from the command line with {@code ./gradlew :core:simulate -Psim="timers hours seed"}, which
+ * prints a {@link Report}.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+final class TimerSimulator implements TimerEngine.Host {
+
+    // something scripted or scheduled to happen at a time; seq keeps those at the same time in order
+    private abstract static class Event implements Comparable<Event> {
+        final long at;
+        final long seq;
+        boolean cancelled;
+
+        Event(long at, long seq) {
+            this.at = at;
+            this.seq = seq;
+        }
+
+        abstract void run();
+
+        @Override
+        public int compareTo(Event other) {
+            return at != other.at ? (at < other.at ? -1 : 1) : (seq < other.seq ? -1 : seq > other.seq ? 1 : 0);
+        }
+    }
+
+    /** Counts the faces drawn, and the frames they were drawn in. */
+    static final class CountingDisplay implements TimerDisplay, TickScheduler.FrameListener {
+        long labels;
+        long countdowns;
+        long chronometers;
+        long alarms;
+        long paused;
+        long forgets;
+        long frames;
+        // the text last shown by each widget
+        final Map<Integer, CharSequence> faces = new HashMap<>();
+
+        long renders() {
+            return labels + countdowns + chronometers + alarms + paused;
+        }
+
+        @Override
+        public void showLabel(int appWidgetId, int duration) {
+            labels++;
+            faces.put(appWidgetId, DurationFormatter.format(duration));
+        }
+
+        @Override
+        public void showCountdown(int appWidgetId, CharSequence formattedDuration) {
+            countdowns++;
+            faces.put(appWidgetId, formattedDuration);
+        }
+
+        @Override
+        public void showChronometer(int appWidgetId, long deadline) {
+            chronometers++;
+            faces.put(appWidgetId, "chronometer");
+        }
+
+        @Override
+        public void showAlarm(int appWidgetId, int duration) {
+            alarms++;
+            faces.put(appWidgetId, "alarm");
+        }
+
+        @Override
+        public void showPaused(int appWidgetId, int secondsRemaining, int duration) {
+            paused++;
+            faces.put(appWidgetId, "paused " + DurationFormatter.format(secondsRemaining));
+        }
+
+        @Override
+        public void forget(int appWidgetId) {
+            forgets++;
+        }
+
+        @Override
+        public void onFrameStart() {
+            frames++;
+        }
+
+        @Override
+        public void onFrameEnd() {
+        }
+    }
+
+    /**
+     * Keeps the wake locks as WakeLockArbiter does, one kernel lock of each kind shared by every timer,
+     * and records each interval a kernel lock would be held.
+     */
+    static final class RecordingWakeLocks implements WakeLocks {
+        private final Clock clock;
+
+        // for each lock, the widgets holding it and until when
+        private final Map<Integer, Long>[] holders;
+        // when each kernel lock was taken, or -1, and the latest its timeout runs to
+        private final long[] heldSince = {-1, -1, -1};
+        private final long[] heldUntil = new long[LOCK_COUNT];
+
+        final long[] intervals = new long[LOCK_COUNT];
+        final long[] heldMs = new long[LOCK_COUNT];
+        final long[] longestMs = new long[LOCK_COUNT];
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        RecordingWakeLocks(Clock clock) {
+            this.clock = clock;
+            holders = new Map[LOCK_COUNT];
+            for (int lock = 0; lock < LOCK_COUNT; lock++) {
+                holders[lock] = new HashMap<>();
+            }
+        }
+
+        @Override
+        public void acquire(int lock, int appWidgetId, long until) {
+            holders[lock].put(appWidgetId, until);
+            update(lock, clock.now());
+        }
+
+        @Override
+        public void releaseAll(int appWidgetId) {
+            for (int lock = 0; lock < holders.length; lock++) {
+                if (holders[lock].remove(appWidgetId) != null) {
+                    update(lock, clock.now());
+                }
+            }
+        }
+
+        /** Whether the lock is held at now, letting go of it if its timeout ran out. */
+        boolean isHeld(int lock, long now) {
+            if (heldSince[lock] >= 0 && heldUntil[lock] <= now) {
+                update(lock, now);
+            }
+            return heldSince[lock] >= 0;
+        }
+
+        /** When the lock times out, if held; else {@link TickScheduler#DONE}. */
+        long timeoutAt(int lock) {
+            return heldSince[lock] >= 0 ? heldUntil[lock] : TickScheduler.DONE;
+        }
+
+        private void update(int lock, long now) {
+            long until = 0;
+            for (Iterator<Long> it = holders[lock].values().iterator(); it.hasNext(); ) {
+                long holderUntil = it.next();
+                if (holderUntil <= now) {
+                    it.remove();
+                } else {
+                    until = Math.max(until, holderUntil);
+                }
+            }
+            if (holders[lock].isEmpty()) {
+                if (heldSince[lock] >= 0) {
+                    // released now, or timed out before
+                    long held = Math.min(now, heldUntil[lock]) - heldSince[lock];
+                    intervals[lock]++;
+                    heldMs[lock] += held;
+                    longestMs[lock] = Math.max(longestMs[lock], held);
+                    heldSince[lock] = -1;
+                }
+            } else {
+                if (heldSince[lock] < 0) {
+                    heldSince[lock] = now;
+                }
+                heldUntil[lock] = until;
+            }
+        }
+    }
+
+    /** Counts the alarms sounding. */
+    static final class CountingSound implements AlarmSound {
+        private final Set<Integer> playing = new HashSet<>();
+        private int nextHandle = 1;
+
+        long plays;
+        int maxPlaying;
+
+        @Override
+        public int play() {
+            plays++;
+            int handle = nextHandle++;
+            playing.add(handle);
+            maxPlaying = Math.max(maxPlaying, playing.size());
+            return handle;
+        }
+
+        @Override
+        public void stop(int handle) {
+            playing.remove(handle);
+        }
+
+        int playing() {
+            return playing.size();
+        }
+    }
+
+    /** What happened in a run. */
+    static final class Report {
+        private static final String[] LOCK_NAMES = {"cpu", "screen", "wake screen"};
+
+        long virtualMs;
+        long wallMs;
+        long ticks;
+        long frames;
+        long started;
+        long finished;
+        long labels;
+        long countdowns;
+        long chronometers;
+        long alarmFaces;
+        long pausedFaces;
+        long alarmsPlayed;
+        int maxAlarmsPlaying;
+        long notifications;
+        long expiryAlarms;
+        long[] wakeLockIntervals;
+        long[] wakeLockHeldMs;
+        long[] wakeLockLongestMs;
+        long tickLatenessP99;
+        long tickLatenessMax;
+
+        long renders() {
+            return labels + countdowns + chronometers + alarmFaces + pausedFaces;
+        }
+
+        void print(PrintWriter pw) {
+            pw.printf("virtual time: %d s, wall time: %d ms%n", virtualMs / 1000, wallMs);
+            pw.printf("timers started: %d, finished: %d%n", started, finished);
+            pw.printf("ticks: %d in %d frames, lateness p99=%d max=%d ms%n", ticks, frames,
+                    tickLatenessP99, tickLatenessMax);
+            pw.printf("renders: %d (label=%d countdown=%d chronometer=%d alarm=%d paused=%d)%n",
+                    renders(), labels, countdowns, chronometers, alarmFaces, pausedFaces);
+            pw.printf("alarms played: %d, most at once: %d, notifications: %d, expiry alarms: %d%n",
+                    alarmsPlayed, maxAlarmsPlaying, notifications, expiryAlarms);
+            for (int lock = 0; lock < WakeLocks.LOCK_COUNT; lock++) {
+                pw.printf("%s lock: intervals=%d held=%d ms longest=%d ms%n", LOCK_NAMES[lock],
+                        wakeLockIntervals[lock], wakeLockHeldMs[lock], wakeLockLongestMs[lock]);
+            }
+            pw.flush();
+        }
+    }
+
+    private final FakeClock clock;
+    private final TickScheduler scheduler;
+    private final LatencyHistogram lateness = new LatencyHistogram(Long.MAX_VALUE / 2);
+    private final TimerEngine engine;
+
+    final CountingDisplay display = new CountingDisplay();
+    final RecordingWakeLocks wakeLocks;
+    final CountingSound sound = new CountingSound();
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long nextSeq;
+
+    // the widgets' configuration
+    private final Map<Integer, Integer> durations = new HashMap<>();
+    private final Set<Integer> keepScreenOn = new HashSet<>();
+    private final Map<Integer, Long> pausedRemaining = new HashMap<>();
+
+    // the expiry alarm set for each widget
+    private final Map<Integer, Event> expiryAlarms = new HashMap<>();
+
+    private boolean screenOn = true;
+    // how long after a timer finishes it is tapped again, or -1 for never
+    private long restartAfterMs = -1;
+
+    private long started;
+    private long finished;
+    private long notifications;
+    private long expiryAlarmsFired;
+
+    TimerSimulator(long startTime, boolean useChronometer) {
+        clock = new FakeClock(startTime);
+        scheduler = new TickScheduler(clock);
+        scheduler.setFrameListener(display);
+        scheduler.setLatenessHistogram(lateness);
+        wakeLocks = new RecordingWakeLocks(clock);
+        engine = new TimerEngine(scheduler, display, wakeLocks, sound, this, useChronometer);
+    }
+
+    long now() {
+        return clock.now();
+    }
+
+    TimerEngine engine() {
+        return engine;
+    }
+
+    /** Adds a widget for a timer of the given duration. */
+    void addWidget(int appWidgetId, int durationSec, boolean keepsScreenOn) {
+        durations.put(appWidgetId, durationSec);
+        if (keepsScreenOn) {
+            keepScreenOn.add(appWidgetId);
+        }
+    }
+
+    /** Has every timer tapped again, to start over, the given time after its alarm is over. */
+    void restartAfter(long ms) {
+        restartAfterMs = ms;
+    }
+
+    /** Taps the widget at the given time, as its click intent does. */
+    void tap(long at, final int appWidgetId) {
+        post(at, new Runnable() {
+            @Override public void run() {
+                engine.run(new TimerCommand(TimerCommand.TOGGLE, appWidgetId, durations.get(appWidgetId), 0));
+            }
+        });
+    }
+
+    /**
+     * Taps the widget showing its label at the given time, with the first frame drawn then, as the
+     * receiver does, and the command run at runAt, once it has reached the service.
+     */
+    void tapWithFirstFrame(final long at, long runAt, final int appWidgetId) {
+        final int duration = durations.get(appWidgetId);
+        post(at, new Runnable() {
+            @Override public void run() {
+                display.showCountdown(appWidgetId, DurationFormatter.format(duration));
+            }
+        });
+        post(runAt, new Runnable() {
+            @Override public void run() {
+                engine.run(new TimerCommand(TimerCommand.TOGGLE, appWidgetId, duration, 0, at, true));
+            }
+        });
+    }
+
+    /** Taps the widget's reset button at the given time. */
+    void reset(long at, final int appWidgetId) {
+        post(at, new Runnable() {
+            @Override public void run() {
+                engine.run(new TimerCommand(TimerCommand.STOP, appWidgetId, 0, 0));
+            }
+        });
+    }
+
+    /** Turns the screen on or off at the given time; with it on, the widgets can be seen. */
+    void setScreenOn(long at, final boolean on) {
+        post(at, new Runnable() {
+            @Override public void run() {
+                screenOn = on;
+                engine.setWidgetsVisible(on);
+            }
+        });
+    }
+
+    /** Runs everything due up to the given time, and leaves the clock there. */
+    void runUntil(long end) {
+        while (true) {
+            long now = clock.now();
+            boolean awake = isAwake(now);
+            long next = events.isEmpty() ? Long.MAX_VALUE : events.peek().at;
+            if (awake) {
+                long tick = scheduler.nextDueTime();
+                if (tick != TickScheduler.DONE) {
+                    next = Math.min(next, Math.max(tick, now));
+                }
+                // the device may fall asleep when a wake lock times out
+                for (int lock = 0; lock < WakeLocks.LOCK_COUNT; lock++) {
+                    long timeout = wakeLocks.timeoutAt(lock);
+                    if (timeout != TickScheduler.DONE) {
+                        next = Math.min(next, Math.max(timeout, now));
+                    }
+                }
+            }
+            if (next > end) {
+                clock.advance(end - now);
+                return;
+            }
+            clock.advance(next - now);
+            now = next;
+
+            // scripted events and alarms each wake the device long enough to run what's due
+            boolean woken = false;
+            while (!events.isEmpty() && events.peek().at <= now) {
+                Event event = events.poll();
+                if (!event.cancelled) {
+                    event.run();
+                    woken = true;
+                }
+            }
+            long tick = scheduler.nextDueTime();
+            if (tick != TickScheduler.DONE && tick <= now && (woken || isAwake(now))) {
+                scheduler.runDue(now);
+            }
+        }
+    }
+
+    /** What happened so far, with the given wall time. */
+    Report report(long wallMs) {
+        Report report = new Report();
+        report.virtualMs = clock.now();
+        report.wallMs = wallMs;
+        report.ticks = lateness.getCount();
+        report.frames = display.frames;
+        report.started = started;
+        report.finished = finished;
+        report.labels = display.labels;
+        report.countdowns = display.countdowns;
+        report.chronometers = display.chronometers;
+        report.alarmFaces = display.alarms;
+        report.pausedFaces = display.paused;
+        report.alarmsPlayed = sound.plays;
+        report.maxAlarmsPlaying = sound.maxPlaying;
+        report.notifications = notifications;
+        report.expiryAlarms = expiryAlarmsFired;
+        // counts an interval still open as ending now
+        long[] intervals = wakeLocks.intervals.clone();
+        long[] heldMs = wakeLocks.heldMs.clone();
+        long[] longestMs = wakeLocks.longestMs.clone();
+        for (int lock = 0; lock < WakeLocks.LOCK_COUNT; lock++) {
+            if (wakeLocks.heldSince[lock] >= 0) {
+                long held = Math.min(clock.now(), wakeLocks.heldUntil[lock]) - wakeLocks.heldSince[lock];
+                intervals[lock]++;
+                heldMs[lock] += held;
+                longestMs[lock] = Math.max(longestMs[lock], held);
+            }
+        }
+        report.wakeLockIntervals = intervals;
+        report.wakeLockHeldMs = heldMs;
+        report.wakeLockLongestMs = longestMs;
+        report.tickLatenessP99 = lateness.getValueAtPercentile(99);
+        report.tickLatenessMax = lateness.getMax();
+        return report;
+    }
+
+    private boolean isAwake(long now) {
+        // all checked, so a timed out lock is let go of.  The plain screen lock keeps nothing awake
+        // once the user has turned the screen off.
+        boolean cpu = wakeLocks.isHeld(WakeLocks.CPU, now);
+        wakeLocks.isHeld(WakeLocks.SCREEN, now);
+        boolean wakeScreen = wakeLocks.isHeld(WakeLocks.WAKE_SCREEN, now);
+        return screenOn || cpu || wakeScreen;
+    }
+
+    private Event post(long at, final Runnable runnable) {
+        Event event = new Event(at, nextSeq++) {
+            @Override void run() {
+                runnable.run();
+            }
+        };
+        events.add(event);
+        return event;
+    }
+
+    @Override
+    public boolean keepsScreenOn(int appWidgetId) {
+        return keepScreenOn.contains(appWidgetId);
+    }
+
+    @Override
+    public int getDuration(int appWidgetId) {
+        Integer duration = durations.get(appWidgetId);
+        return duration != null ? duration : 0;
+    }
+
+    @Override
+    public long getPausedRemaining(int appWidgetId) {
+        Long remaining = pausedRemaining.get(appWidgetId);
+        return remaining != null ? remaining : WidgetConfigStore.NOT_PAUSED;
+    }
+
+    @Override
+    public void setPausedRemaining(int appWidgetId, long remainingMs) {
+        if (remainingMs == WidgetConfigStore.NOT_PAUSED) {
+            pausedRemaining.remove(appWidgetId);
+        } else {
+            pausedRemaining.put(appWidgetId, remainingMs);
+        }
+    }
+
+    @Override
+    public boolean isScreenOn() {
+        // only the alarm's screen lock turns the screen on
+        return screenOn || wakeLocks.isHeld(WakeLocks.WAKE_SCREEN, clock.now());
+    }
+
+    @Override
+    public void setExpiryAlarm(final int appWidgetId, long deadline) {
+        cancelExpiryAlarm(appWidgetId);
+        expiryAlarms.put(appWidgetId, post(deadline, new Runnable() {
+            @Override public void run() {
+                expiryAlarms.remove(appWidgetId);
+                expiryAlarmsFired++;
+                engine.expire(appWidgetId);
+            }
+        }));
+    }
+
+    @Override
+    public void cancelExpiryAlarm(int appWidgetId) {
+        Event alarm = expiryAlarms.remove(appWidgetId);
+        if (alarm != null) {
+            alarm.cancelled = true;
+        }
+    }
+
+    @Override
+    public void prepareNotification(int appWidgetId) {
+    }
+
+    @Override
+    public void showNotification(int appWidgetId) {
+        notifications++;
+    }
+
+    @Override
+    public void cancelNotification(int appWidgetId) {
+    }
+
+    @Override
+    public void timerStarted(int appWidgetId, Countdown countdown) {
+        started++;
+    }
+
+    @Override
+    public void timerStopped(int appWidgetId) {
+    }
+
+    @Override
+    public void timerFinished(int appWidgetId) {
+        finished++;
+        if (restartAfterMs >= 0) {
+            tap(clock.now() + restartAfterMs, appWidgetId);
+        }
+    }
+
+    /**
+     * Runs thousands of timers over hours: by default 10,000 widgets of durations from a minute to an
+     * hour, tapped over the first minute and again a while after each alarm, with the screen on for
+     * five minutes in every half hour, and one widget in ten keeping it on.  Arguments: the number of
+     * timers, the hours to run and the random seed.
+     */
+    public static void main(String[] args) {
+        int timers = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        double hours = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        long end = (long) (hours * 60 * 60 * 1000);
+
+        long wallStart = System.nanoTime();
+        TimerSimulator sim = new TimerSimulator(0, false);
+        Random random = new Random(seed);
+        for (int id = 1; id <= timers; id++) {
+            sim.addWidget(id, 60 + random.nextInt(60 * 60), id % 10 == 0);
+            sim.tap(random.nextInt(60 * 1000), id);
+        }
+        sim.restartAfter(2 * 60 * 1000);
+        for (long at = 5 * 60 * 1000; at < end; at += 30 * 60 * 1000) {
+            sim.setScreenOn(at, false);
+            sim.setScreenOn(at + 25 * 60 * 1000, true);
+        }
+        sim.runUntil(end);
+        long wallMs = (System.nanoTime() - wallStart) / 1000000;
+
+        PrintWriter pw = new PrintWriter(System.out);
+        pw.printf("%d timers, seed %d%n", timers, seed);
+        sim.report(wallMs).print(pw);
+    }
+}
@@ -0,0 +1,217 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TimerSimulatorTest {
+
+    @Test
+    public void countsDownAndRingsOnce() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 5, true);
+        sim.tap(0, 1);
+        sim.runUntil(60 * 1000);
+
+        TimerSimulator.Report report = sim.report(0);
+        // 5..1 drawn, then the alarm at zero and the label once it's over
+        assertEquals(7, report.ticks);
+        assertEquals(7, report.frames);
+        assertEquals(5, report.countdowns);
+        assertEquals(1, report.alarmFaces);
+        assertEquals(1, report.labels);
+        assertEquals(1, report.alarmsPlayed);
+        assertEquals(1, report.finished);
+        assertEquals(0, sim.sound.playing());
+        // the screen is kept on from the start until the alarm is over
+        assertEquals(1, report.wakeLockIntervals[WakeLocks.SCREEN]);
+        assertEquals(20 * 1000, report.wakeLockHeldMs[WakeLocks.SCREEN]);
+        assertEquals(0, report.wakeLockIntervals[WakeLocks.CPU]);
+        assertEquals("0:05", sim.display.faces.get(1).toString());
+    }
+
+    @Test
+    public void chronometerIsDrawnOnce() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, true);
+        sim.addWidget(1, 5, true);
+        sim.tap(0, 1);
+        sim.runUntil(60 * 1000);
+
+        TimerSimulator.Report report = sim.report(0);
+        assertEquals(3, report.ticks);
+        assertEquals(1, report.chronometers);
+        assertEquals(0, report.countdowns);
+        assertEquals(3, report.renders());
+    }
+
+    @Test
+    public void sleepsUntilTheExpiryAlarmWithTheScreenOff() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 60, false);
+        sim.tap(0, 1);
+        sim.setScreenOn(10500, false);
+        sim.runUntil(2 * 60 * 1000);
+
+        TimerSimulator.Report report = sim.report(0);
+        // 60..50 drawn, nothing while asleep, then zero and the end of the alarm
+        assertEquals(13, report.ticks);
+        assertEquals(11, report.countdowns);
+        // the widgets can't be seen, so no alarm face
+        assertEquals(0, report.alarmFaces);
+        assertEquals(1, report.expiryAlarms);
+        assertEquals(1, report.notifications);
+        // the cpu, and the lock turning the screen on, held only while the alarm sounds
+        assertEquals(1, report.wakeLockIntervals[WakeLocks.CPU]);
+        assertEquals(Countdown.ALARM_DURATION_MS, report.wakeLockHeldMs[WakeLocks.CPU]);
+        assertEquals(1, report.wakeLockIntervals[WakeLocks.WAKE_SCREEN]);
+        assertEquals(Countdown.ALARM_DURATION_MS, report.wakeLockHeldMs[WakeLocks.WAKE_SCREEN]);
+        assertEquals(0, report.wakeLockIntervals[WakeLocks.SCREEN]);
+    }
+
+    @Test
+    public void startingATimerLeavesTheScreenOffOnceTurnedOff() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 60, true);
+        sim.addWidget(2, 30, true);
+        sim.tap(0, 1);
+        sim.setScreenOn(5000, false);
+        // re-times the shared screen lock
+        sim.tap(6000, 2);
+        sim.runUntil(10000);
+
+        assertFalse(sim.isScreenOn());
+        assertEquals(0, sim.report(0).wakeLockIntervals[WakeLocks.WAKE_SCREEN]);
+    }
+
+    @Test
+    public void pausedTimerHoldsNothing() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 10, true);
+        sim.tap(0, 1);
+        sim.tap(2500, 1);
+        sim.runUntil(9000);
+
+        assertEquals(TimerRegistry.PAUSED, sim.engine().getState(1));
+        assertEquals("paused 0:08", sim.display.faces.get(1));
+        TimerSimulator.Report report = sim.report(0);
+        assertEquals(3, report.ticks);
+        assertEquals(1, report.pausedFaces);
+        assertEquals(2500, report.wakeLockHeldMs[WakeLocks.SCREEN]);
+
+        // resumed with the 7.5 s it had left
+        sim.tap(10000, 1);
+        sim.runUntil(17499);
+        assertEquals(0, sim.sound.plays);
+        sim.runUntil(17500);
+        assertEquals(1, sim.sound.plays);
+        sim.runUntil(60 * 1000);
+        assertEquals(TimerRegistry.IDLE, sim.engine().getState(1));
+        assertEquals(2, sim.report(0).started);
+    }
+
+    @Test
+    public void runsFromTheTapWhenTheFirstFrameWasDrawnThen() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 5, true);
+        sim.tapWithFirstFrame(0, 400, 1);
+        sim.runUntil(1000);
+        assertEquals("0:04", sim.display.faces.get(1).toString());
+        sim.runUntil(4999);
+        assertEquals(0, sim.sound.plays);
+        sim.runUntil(5000);
+        assertEquals(1, sim.sound.plays);
+    }
+
+    @Test
+    public void putsTheLabelBackWhenTheTapIsUndone() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 5, true);
+        sim.display.showCountdown(1, "0:05");
+        TimerCommand tap = new TimerCommand(TimerCommand.TOGGLE, 1, 5, 1, 0, true);
+        sim.engine().run(TimerCommand.merge(tap, new TimerCommand(TimerCommand.STOP, 1, 0, 2)));
+
+        assertEquals(TimerRegistry.IDLE, sim.engine().getState(1));
+        assertEquals(1, sim.display.labels);
+    }
+
+    @Test
+    public void doubleTapOnARingingAlarmStopsItAndStartsAgain() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 10, true);
+        sim.tap(0, 1);
+        sim.runUntil(12000);
+        assertEquals(TimerRegistry.RINGING, sim.engine().getState(1));
+        assertEquals(1, sim.sound.playing());
+
+        TimerCommand tap = new TimerCommand(TimerCommand.TOGGLE, 1, 10, 1);
+        sim.engine().run(TimerCommand.merge(tap, new TimerCommand(TimerCommand.TOGGLE, 1, 10, 2)));
+
+        assertEquals(0, sim.sound.playing());
+        assertEquals(TimerRegistry.RUNNING, sim.engine().getState(1));
+    }
+
+    @Test
+    public void timesTheFirstFrameAfterATap() throws Exception {
+        TimerMetrics.INSTANCE.reset();
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 5, true);
+        sim.runUntil(250);
+        sim.engine().run(new TimerCommand(TimerCommand.TOGGLE, 1, 5, 1, 100, false));
+        sim.runUntil(60 * 1000);
+
+        assertEquals(1, TimerMetrics.INSTANCE.tapToFirstFrame.getCount());
+        assertEquals(150, TimerMetrics.INSTANCE.tapToFirstFrame.getMax());
+    }
+
+    @Test
+    public void stopsARingingAlarm() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        sim.addWidget(1, 10, false);
+        sim.tap(0, 1);
+        sim.tap(12000, 1);
+        sim.runUntil(60 * 1000);
+
+        TimerSimulator.Report report = sim.report(0);
+        assertEquals(1, report.alarmsPlayed);
+        assertEquals(0, sim.sound.playing());
+        assertEquals(0, report.finished);
+        assertEquals(2000, report.wakeLockHeldMs[WakeLocks.CPU]);
+        assertEquals(TimerRegistry.IDLE, sim.engine().getState(1));
+    }
+
+    @Test
+    public void timersStartedTogetherShareFrames() throws Exception {
+        TimerSimulator sim = new TimerSimulator(0, false);
+        for (int id = 1; id <= 100; id++) {
+            sim.addWidget(id, 30, true);
+            sim.tap(id * 7, id);
+        }
+        sim.runUntil(2 * 60 * 1000);
+
+        TimerSimulator.Report report = sim.report(0);
+        assertEquals(100, report.finished);
+        assertEquals(100, report.maxAlarmsPlaying);
+        assertEquals(3228, report.ticks);
+        assertEquals(133, report.frames);
+        // one screen lock, shared by them all
+        assertEquals(1, report.wakeLockIntervals[WakeLocks.SCREEN]);
+    }
+
+    @Test
+    public void runsAreRepeatable() throws Exception {
+        long[] ticks = new long[2];
+        for (int run = 0; run < 2; run++) {
+            TimerSimulator sim = new TimerSimulator(0, false);
+            for (int id = 1; id <= 50; id++) {
+                sim.addWidget(id, 60 + id * 13, id % 3 == 0);
+                sim.tap(id * 101, id);
+            }
+            sim.restartAfter(30 * 1000);
+            sim.setScreenOn(5 * 60 * 1000, false);
+            sim.setScreenOn(20 * 60 * 1000, true);
+            sim.runUntil(60 * 60 * 1000);
+            ticks[run] = sim.report(0).ticks;
+        }
+        assertEquals(ticks[0], ticks[1]);
+    }
+}
@@ -0,0 +1,116 @@
+package tonycase.simpletimer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TraceRecorderTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackWhatWasRecorded() throws Exception {
+        TraceRecorder recorder = new TraceRecorder();
+        EventLog log = new EventLog(8, recorder);
+        recorder.start(1024);
+        log.record(EventLog.TAP, 3, 60);
+        log.record(EventLog.START, 3, 12345);
+        log.record(EventLog.STOP, 3, 59);
+        File file = folder.newFile("trace.bin");
+        assertEquals(3, recorder.stop(file));
+
+        TraceRecorder.Trace trace = TraceRecorder.read(file);
+        assertEquals(0, trace.dropped);
+        List<TraceRecorder.Record> records = trace.records;
+        assertEquals(3, records.size());
+        assertEquals(EventLog.TAP, records.get(0).event);
+        assertEquals(3, records.get(0).appWidgetId);
+        assertEquals(60, records.get(0).value);
+        assertEquals(EventLog.START, records.get(1).event);
+        assertEquals(12345, records.get(1).value);
+        assertEquals(EventLog.STOP, records.get(2).event);
+        assertTrue(records.get(1).time <= records.get(2).time);
+    }
+
+    @Test
+    public void timesRecordsOnItsClock() throws Exception {
+        final long[] nanos = {5000000000L};
+        TraceRecorder recorder = new TraceRecorder();
+        recorder.setClock(new TraceRecorder.NanoClock() {
+            @Override public long nanoTime() {
+                return nanos[0];
+            }
+        });
+        recorder.start(1024);
+        nanos[0] += 1500000;
+        recorder.record(EventLog.TAP, 3, 60);
+        File file = folder.newFile("trace.bin");
+        recorder.stop(file);
+
+        TraceRecorder.Trace trace = TraceRecorder.read(file);
+        assertEquals(5000000000L, trace.startedAtNanos);
+        assertEquals(1500, trace.records.get(0).time);
+    }
+
+    @Test
+    public void recordsNothingUnlessStarted() throws Exception {
+        TraceRecorder recorder = new TraceRecorder();
+        EventLog log = new EventLog(8, recorder);
+        log.record(EventLog.TAP, 3, 60);
+        assertEquals(-1, recorder.stop(folder.newFile("trace.bin")));
+
+        recorder.start(1024);
+        recorder.stop(folder.newFile("first.bin"));
+        log.record(EventLog.TAP, 3, 60);
+        assertEquals(-1, recorder.stop(folder.newFile("second.bin")));
+    }
+
+    @Test
+    public void dropsWhatDoesNotFit() throws Exception {
+        TraceRecorder recorder = new TraceRecorder();
+        // room for two records
+        recorder.start(50);
+        for (int i = 0; i < 5; i++) {
+            recorder.record(EventLog.TICK, 1, i);
+        }
+        File file = folder.newFile("trace.bin");
+        assertEquals(2, recorder.stop(file));
+
+        TraceRecorder.Trace trace = TraceRecorder.read(file);
+        assertEquals(3, trace.dropped);
+        assertEquals(2, trace.records.size());
+        assertEquals(1, trace.records.get(1).value);
+    }
+
+    @Test
+    public void recordsEachWakeupOfTheScheduler() throws Exception {
+        FakeClock clock = new FakeClock(0);
+        TickScheduler scheduler = new TickScheduler(clock);
+        TraceRecorder recorder = new TraceRecorder();
+        scheduler.setTraceRecorder(recorder);
+        TickScheduler.Task task = new TickScheduler.Task() {
+            @Override public long onTick(long now) {
+                return TickScheduler.DONE;
+            }
+        };
+        scheduler.schedule(task, 1000);
+        scheduler.runDue(500);
+        recorder.start(1024);
+        scheduler.runDue(1004);
+        File file = folder.newFile("trace.bin");
+        recorder.stop(file);
+
+        // only the wakeup that ran a task, while recording
+        List<TraceRecorder.Record> records = TraceRecorder.read(file).records;
+        assertEquals(2, records.size());
+        assertEquals(TraceRecorder.FRAME, records.get(0).event);
+        assertEquals(1, records.get(0).appWidgetId);
+        assertEquals(4, records.get(0).value);
+        assertEquals(TraceRecorder.FRAME_END, records.get(1).event);
+    }
+}
@@ -0,0 +1,59 @@
+package tonycase.simpletimer;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TraceToJsonTest {
+
+    private static String convert(TraceRecorder.Record... records) {
+        TraceRecorder.Trace trace = new TraceRecorder.Trace(1466000000000L, 5000000, 0,
+                Arrays.asList(records));
+        StringWriter out = new StringWriter();
+        TraceToJson.convert(trace, out);
+        return out.toString();
+    }
+
+    private static int count(String text, String part) {
+        int n = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void timerIsOneSliceFromStartToStop() throws Exception {
+        String json = convert(
+                new TraceRecorder.Record(EventLog.TAP, 7, 10, 60),
+                new TraceRecorder.Record(EventLog.START, 7, 20, 61000),
+                new TraceRecorder.Record(EventLog.PAUSE, 7, 300, 59000),
+                new TraceRecorder.Record(EventLog.STOP, 7, 400, 59));
+
+        assertTrue(json, json.startsWith("{\"traceEvents\":["));
+        // times are on the recorder's clock, in us
+        assertTrue(json, json.contains("\"ph\":\"b\",\"cat\":\"timer\",\"name\":\"timer 7\",\"id\":7,"
+                + "\"pid\":1,\"tid\":7,\"ts\":5020}"));
+        assertTrue(json, json.contains("\"ph\":\"e\",\"cat\":\"timer\",\"name\":\"timer 7\",\"id\":7,"
+                + "\"pid\":1,\"tid\":7,\"ts\":5300}"));
+        // the stop of a paused timer has no slice left to end
+        assertEquals(1, count(json, "\"ph\":\"e\""));
+        assertEquals(4, count(json, "\"ph\":\"i\""));
+        assertEquals(1, count(json, "\"name\":\"widget 7\""));
+    }
+
+    @Test
+    public void wakeupsAreSlicesOnTheTicker() throws Exception {
+        String json = convert(
+                new TraceRecorder.Record(TraceRecorder.FRAME, 3, 1000, 2),
+                new TraceRecorder.Record(TraceRecorder.FRAME_END, 3, 1250, 0));
+
+        assertTrue(json, json.contains("\"ph\":\"B\",\"name\":\"frame\",\"pid\":1,\"tid\":0,\"ts\":6000,"
+                + "\"args\":{\"tasks\":3,\"late ms\":2}}"));
+        assertTrue(json, json.contains("\"ph\":\"E\",\"pid\":1,\"tid\":0,\"ts\":6250}"));
+        assertEquals(0, count(json, "\"ph\":\"i\""));
+    }
+}
@@ -0,0 +1,155 @@
+package tonycase.simpletimer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class WidgetConfigStoreTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private ScheduledThreadPoolExecutor writer;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        writer = new ScheduledThreadPoolExecutor(1);
+        file = new File(folder.getRoot(), "config.bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.shutdownNow();
+    }
+
+    @Test
+    public void unknownWidgetHasNoConfig() throws Exception {
+        WidgetConfigStore store = new WidgetConfigStore(file, writer);
+        assertEquals(WidgetConfigStore.NO_DURATION, store.getDuration(7));
+        assertFalse(store.getScreenOn(7));
+    }
+
+    @Test
+    public void keepsConfigPerWidget() throws Exception {
+        WidgetConfigStore store = new WidgetConfigStore(file, writer);
+        store.putDuration(42, 300);
+        store.putDuration(3, 60);
+        store.putScreenOn(3, true);
+        store.putDuration(17, 90);
+
+        assertEquals(60, store.getDuration(3));
+        assertEquals(90, store.getDuration(17));
+        assertEquals(300, store.getDuration(42));
+        assertTrue(store.getScreenOn(3));
+        assertFalse(store.getScreenOn(42));
+
+        store.remove(17);
+        assertEquals(WidgetConfigStore.NO_DURATION, store.getDuration(17));
+        assertEquals(60, store.getDuration(3));
+        assertEquals(300, store.getDuration(42));
+    }
+
+    @Test
+    public void reloadsWhatWasFlushed() throws Exception {
+        WidgetConfigStore store = new WidgetConfigStore(file, writer);
+        store.putDuration(5, 120);
+        store.putScreenOn(5, true);
+        store.putDuration(9, 45);
+        store.flushNow();
+
+        WidgetConfigStore reloaded = new WidgetConfigStore(file, writer);
+        assertTrue(reloaded.exists());
+        reloaded.load();
+        assertEquals(120, reloaded.getDuration(5));
+        assertTrue(reloaded.getScreenOn(5));
+        assertEquals(45, reloaded.getDuration(9));
+        assertFalse(reloaded.getScreenOn(9));
+    }
+
+    @Test
+    public void writesBehindChanges() throws Exception {
+        WidgetConfigStore store = new WidgetConfigStore(file, writer);
+        store.putDuration(1, 10);
+        store.putDuration(2, 20);
+        assertFalse(file.exists());
+
+        // the flush is queued after the delay; wait for it to run
+        writer.shutdown();
+        assertTrue(writer.awaitTermination(5, TimeUnit.SECONDS));
+        assertNull(store.getLastWriteError());
+
+        WidgetConfigStore reloaded = new WidgetConfigStore(file, writer);
+        reloaded.load();
+        assertEquals(10, reloaded.getDuration(1));
+        assertEquals(20, reloaded.getDuration(2));
+    }
+
+    @Test
+    public void keepsPausedTimesAcrossReloads() throws Exception {
+        WidgetConfigStore store = new WidgetConfigStore(file, writer);
+        store.putDuration(4, 600);
+        store.putPausedRemaining(4, 123456);
+        store.putPausedRemaining(8, 5000);
+        assertEquals(WidgetConfigStore.NOT_PAUSED, store.getPausedRemaining(9));
+        store.flushNow();
+
+        WidgetConfigStore reloaded = new WidgetConfigStore(file, writer);
+        reloaded.load();
+        assertEquals(123456, reloaded.getPausedRemaining(4));
+        assertEquals(600, reloaded.getDuration(4));
+        assertEquals(5000, reloaded.getPausedRemaining(8));
+
+        reloaded.putPausedRemaining(4, WidgetConfigStore.NOT_PAUSED);
+        assertEquals(WidgetConfigStore.NOT_PAUSED, reloaded.getPausedRemaining(4));
+        assertEquals(600, reloaded.getDuration(4));
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterChanges() throws Exception {
+        WidgetConfigStore store = new WidgetConfigStore(file, writer);
+        store.putDuration(5, 60);
+        store.putScreenOn(5, true);
+        store.putDuration(6, 90);
+        store.putPausedRemaining(6, 4000);
+
+        WidgetConfigStore.Snapshot snapshot = store.snapshot();
+        store.putDuration(5, 120);
+        store.putPausedRemaining(6, WidgetConfigStore.NOT_PAUSED);
+        store.putDuration(7, 30);
+
+        assertEquals(60, snapshot.getDuration(5));
+        assertTrue(snapshot.getScreenOn(5));
+        assertEquals(4000, snapshot.getPausedRemaining(6));
+        assertEquals(WidgetConfigStore.NO_DURATION, snapshot.getDuration(7));
+        assertEquals(120, store.getDuration(5));
+        assertEquals(WidgetConfigStore.NOT_PAUSED, store.getPausedRemaining(6));
+    }
+
+    @Test
+    public void readsVersionOneFiles() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x53545746);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeInt(6);
+        out.writeInt(30);
+        out.writeByte(1);
+        out.close();
+
+        WidgetConfigStore store = new WidgetConfigStore(file, writer);
+        store.load();
+        assertEquals(30, store.getDuration(6));
+        assertTrue(store.getScreenOn(6));
+        assertEquals(WidgetConfigStore.NOT_PAUSED, store.getPausedRemaining(6));
+    }
+}
@@ -0,0 +1,124 @@
+package tonycase.simpletimer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Turns a trace written by {@link TraceRecorder} into the Chrome trace event format, for
+ * chrome://tracing or ui.perfetto.dev.  Each timer, from start or resume to stop, pause or the end of
+ * its alarm, is an async slice "timer &lt;id&gt;", with its other events, e.g. taps and the alarm, as
+ * instants on a track of the widget's own; each wakeup of the ticker is a slice "frame" on the
+ * ticker's track.
+ *
+ * Times are in us on the clock the trace was recorded on, in the app the boot-time clock of a
+ * Perfetto system trace, so the two line up.  Against a trace on the monotonic clock, e.g. an older
+ * systrace, they are late by the time the device spent asleep before recording began.
+ *
+ * Run from the command line with {@code ./gradlew :core:traceToJson -Ptrace="in.bin [out.json]"}.
+ *
+ * @author Tony Case (case.tony@gmail.com)
+ *         Created on 6/14/16.
+ */
+final class TraceToJson {
+
+    // the tracks: the ticker's, and each widget's under its id
+    private static final int PID = 1;
+    private static final int TICKER_TID = 0;
+
+    private TraceToJson() {
+    }
+
+    /** Writes trace to out as a Chrome trace. */
+    static void convert(TraceRecorder.Trace trace, Writer out) {
+        PrintWriter pw = new PrintWriter(out);
+        long base = trace.startedAtNanos / 1000;
+        // the widgets with a track, and with a timer slice open
+        Set<Integer> widgets = new HashSet<>();
+        Set<Integer> running = new HashSet<>();
+
+        pw.print("{\"traceEvents\":[");
+        pw.printf("%n{\"ph\":\"M\",\"name\":\"process_name\",\"pid\":%d,\"tid\":%d,"
+                + "\"args\":{\"name\":\"timers\"}}", PID, TICKER_TID);
+        pw.printf(",%n{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":%d,\"tid\":%d,"
+                + "\"args\":{\"name\":\"countdown-ticker\"}}", PID, TICKER_TID);
+        for (TraceRecorder.Record r : trace.records) {
+            long ts = base + r.time;
+            switch (r.event) {
+                case TraceRecorder.FRAME:
+                    pw.printf(",%n{\"ph\":\"B\",\"name\":\"frame\",\"pid\":%d,\"tid\":%d,\"ts\":%d,"
+                            + "\"args\":{\"tasks\":%d,\"late ms\":%d}}",
+                            PID, TICKER_TID, ts, r.appWidgetId, r.value);
+                    continue;
+                case TraceRecorder.FRAME_END:
+                    pw.printf(",%n{\"ph\":\"E\",\"pid\":%d,\"tid\":%d,\"ts\":%d}", PID, TICKER_TID, ts);
+                    continue;
+                case EventLog.WIDGETS_VISIBLE:
+                    // not a widget's own; shown across every track
+                    pw.printf(",%n{\"ph\":\"i\",\"s\":\"g\",\"name\":\"%s\",\"pid\":%d,\"tid\":%d,\"ts\":%d,"
+                            + "\"args\":{\"value\":%d}}",
+                            EventLog.nameOf(r.event), PID, TICKER_TID, ts, r.value);
+                    continue;
+                default:
+                    break;
+            }
+
+            int id = r.appWidgetId;
+            if (widgets.add(id)) {
+                pw.printf(",%n{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":%d,\"tid\":%d,"
+                        + "\"args\":{\"name\":\"widget %d\"}}", PID, id, id);
+            }
+            pw.printf(",%n{\"ph\":\"i\",\"s\":\"t\",\"name\":\"%s\",\"pid\":%d,\"tid\":%d,\"ts\":%d,"
+                    + "\"args\":{\"value\":%d}}", EventLog.nameOf(r.event), PID, id, ts, r.value);
+            switch (r.event) {
+                case EventLog.START:
+                case EventLog.RESUME:
+                case EventLog.RESTORE:
+                    if (running.add(id)) {
+                        asyncSlice(pw, "b", id, ts);
+                    }
+                    break;
+                case EventLog.STOP:
+                case EventLog.PAUSE:
+                case EventLog.ALARM_OVER:
+                    // a timer started before the recording has no slice to end
+                    if (running.remove(id)) {
+                        asyncSlice(pw, "e", id, ts);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        pw.printf("%n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"startedAtMs\":%d,\"dropped\":%d}}%n",
+                trace.startedAtMs, trace.dropped);
+        pw.flush();
+    }
+
+    private static void asyncSlice(PrintWriter pw, String phase, int id, long ts) {
+        pw.printf(",%n{\"ph\":\"%s\",\"cat\":\"timer\",\"name\":\"timer %d\",\"id\":%d,\"pid\":%d,\"tid\":%d,"
+                + "\"ts\":%d}", phase, id, id, PID, id, ts);
+    }
+
+    /** Arguments: the trace file, and the JSON file to write; by default the trace's name plus .json. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: TraceToJson trace.bin [trace.json]");
+            System.exit(1);
+        }
+        File in = new File(args[0]);
+        File out = new File(args.length > 1 ? args[1] : args[0] + ".json");
+        TraceRecorder.Trace trace = TraceRecorder.read(in);
+        Writer writer = new FileWriter(out);
+        try {
+            convert(trace, writer);
+        } finally {
+            writer.close();
+        }
+        System.out.printf("%d events, %d dropped, written to %s%n", trace.records.size(), trace.dropped, out);
+    }
+}